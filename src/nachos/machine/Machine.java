@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.LinkedList;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -92,14 +93,37 @@ public final class Machine {
     }
 
     /**
-     * Print stats, and terminate Nachos.
+     * Print stats, invoke each handler added by
+     * <tt>addHaltNotificationHandler()</tt>, and terminate Nachos.
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	for (Runnable handler : haltNotificationHandlers) {
+	    try {
+		handler.run();
+	    }
+	    catch (Throwable e) {
+		System.out.println("halt() notification handler failed:");
+		e.printStackTrace(System.out);
+	    }
+	}
+
 	terminate();
     }
 
+    /**
+     * Add a <tt>halt()</tt> notification handler. The handler will be invoked
+     * by <tt>halt()</tt>, after the statistics have been printed, so that the
+     * kernel can report statistics of its own.
+     *
+     * @param	handler	the notification handler.
+     */
+    public static void addHaltNotificationHandler(Runnable handler) {
+	haltNotificationHandlers.add(handler);
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -409,6 +433,8 @@ public final class Machine {
     private static String[] args = null;
 
     private static Stats stats = new Stats();
+    private static LinkedList<Runnable> haltNotificationHandlers =
+	new LinkedList<Runnable>();
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
@@ -48,6 +48,8 @@ public final class Processor {
 	mainMemory = new byte[pageSize * numPhysPages];
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", 4);
+	    Lib.assertTrue(tlbSize > 0);
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
@@ -188,6 +190,33 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Set the current address space ID. From now on, only TLB entries whose
+     * <tt>asid</tt> field matches are used to translate addresses, so the
+     * TLB can hold the entries of several address spaces at once, and need
+     * not be flushed on every context switch. A kernel that never calls this
+     * method leaves it at 0, the default <tt>asid</tt> of every entry.
+     *
+     * @param	asid	the new address space ID.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+
+	this.asid = asid;
+    }
+
+    /**
+     * Return the current address space ID, set by the last call to
+     * <tt>setASID()</tt>.
+     *
+     * @return	the current address space ID.
+     */
+    public int getASID() {
+	Lib.assertTrue(usingTLB);
+
+	return asid;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -325,7 +354,8 @@ public final class Processor {
 	// else, look through all TLB entries for matching vpn
 	else {
 	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+		if (translations[i].valid && translations[i].vpn == vpn &&
+		    translations[i].asid == asid) {
 		    entry = translations[i];
 		    break;
 		}
@@ -335,6 +365,7 @@ public final class Processor {
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
+	    privilege.stats.numTLBHits++;
 	}
 
 	// check if trying to write a read-only page
@@ -539,8 +570,10 @@ public final class Processor {
 
     /** <tt>true</tt> if using a software-managed TLB. */
     private boolean usingTLB;
-    /** Number of TLB entries. */
+    /** Number of TLB entries, set by <tt>Processor.tlbSize</tt>. */
     private int tlbSize = 4;
+    /** The current address space ID. */
+    private int asid = 0;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
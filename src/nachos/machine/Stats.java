@@ -27,6 +27,10 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numTLBHits + numTLBMisses > 0)
+	    System.out.println("TLB: hits " + numTLBHits + ", hit rate "
+			       + (1000L*numTLBHits / (numTLBHits+numTLBMisses))/10.0
+			       + "%");
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -57,6 +61,8 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of address translations the TLB satisfied. */
+    public int numTLBHits = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
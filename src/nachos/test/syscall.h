@@ -25,6 +25,16 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallMunmap		14
+#define syscallSbrk		15
+#define syscallSubmit		16
+#define syscallDup		17
+#define syscallDup2		18
+#define syscallPipe		19
+#define syscallSendfile		20
+#define syscallReadv		21
+#define syscallWritev		22
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -71,8 +81,9 @@ void exit(int status);
 /**
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
- * process ID, and starts with stdin opened as file descriptor 0, and stdout
- * opened as file descriptor 1.
+ * process ID, and starts with the same file descriptors as the parent,
+ * referring to the same open files, so a parent can redirect the child's
+ * stdin and stdout with dup2() before calling exec().
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
@@ -109,6 +120,20 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current process. The child
+ * has a new unique process ID, a copy of the parent's memory, and starts
+ * with the same file descriptors as the parent, referring to the same open
+ * files. Both processes continue by returning from fork().
+ *
+ * The memory is not copied right away. Both processes share it until one of
+ * them writes a page, which then gets a private copy.
+ *
+ * In the parent, fork() returns the child process's process ID, which can be
+ * passed to join(). In the child, it returns 0. On error, returns -1.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -200,6 +225,52 @@ int write(int fileDescriptor, void *buffer, int count);
  */
 int close(int fileDescriptor);
 
+/**
+ * Return the lowest unused file descriptor, made to refer to the same file or
+ * stream as fileDescriptor. Both descriptors share the file's position, and
+ * the file stays open until both are closed.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fileDescriptor);
+
+/**
+ * Make newFileDescriptor refer to the same file or stream as fileDescriptor,
+ * like dup(), closing newFileDescriptor first if it is open. Does nothing if
+ * the two are equal.
+ *
+ * Returns newFileDescriptor, or -1 if an error occurred.
+ */
+int dup2(int fileDescriptor, int newFileDescriptor);
+
+/**
+ * A buffer for readv() and writev(): length bytes starting at base.
+ */
+struct iovec {
+    void *base;
+    int length;
+};
+
+/**
+ * Like read(), but fill the count buffers described by iov, in order,
+ * filling each one before the next. A record with a separate header and body
+ * can be read with one system call, and the file is read as if the buffers
+ * were one. count may be at most 1024.
+ *
+ * Returns the number of bytes read, or -1 if an error occurred. It is an
+ * error if any buffer is invalid or read-only; in that case nothing is read.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int count);
+
+/**
+ * Like write(), but write the count buffers described by iov, in order, as
+ * if they were one buffer. count may be at most 1024.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred. It is an
+ * error if any buffer is invalid; in that case nothing is written.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int count);
+
 /**
  * Delete a file from the file system. If no processes have the file open, the
  * file is deleted immediately and the space it was using is made available for
@@ -215,11 +286,15 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
+ * Map the file referenced by fileDescriptor into memory at address. address
+ * must be page-aligned and above the heap of the program, the whole map must
+ * lie within 16384 pages of the end of the heap, and the map must not overlap
+ * another one. An empty file cannot be mapped. Pages are read from the file
+ * when they are first touched.
  * 
  * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * descriptor will fail (returning -1) until the file descriptor is closed, or
+ * the map is removed by munmap().
  *
  * When the file descriptor is closed, all remaining dirty pages of the map
  * will be flushed to disk and the map will be removed.
@@ -228,6 +303,79 @@ int unlink(char *name);
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map that mmap() created at address, without closing its file
+ * descriptor. All dirty pages of the map are flushed to disk first, and
+ * read() and write() on the file descriptor work again.
+ *
+ * Returns 0 on success, or -1 if no file is mapped at address or a page
+ * could not be flushed.
+ */
+int munmap(char *address);
+
+/**
+ * Move the end of the heap by increment bytes, which may be negative. The heap
+ * starts just above the arguments of the program, and is empty when the
+ * program starts. Pages added to the heap are zero-filled when they are first
+ * touched, and pages removed from it are freed. The heap cannot grow into a
+ * map created by mmap().
+ *
+ * Returns the previous end of the heap, so sbrk(0) returns the current end,
+ * or (void *) -1 if an error occurred.
+ */
+void *sbrk(int increment);
+
+/**
+ * A request in the submission ring of an ioRing.
+ */
+struct ioRequest {
+    int opcode;		/* syscallCreate, syscallOpen, syscallRead,
+			   syscallWrite or syscallClose */
+    int fd;		/* the file descriptor to read, write or close */
+    void *buffer;	/* the buffer to read into or write from, or the name
+			   of the file to open or create */
+    int count;		/* the number of bytes to read or write */
+    int tag;		/* copied to the completion of this request */
+};
+
+/**
+ * A completion in the completion ring of an ioRing.
+ */
+struct ioCompletion {
+    int tag;		/* the tag of the request */
+    int result;		/* what the system call would have returned */
+};
+
+/**
+ * A submission ring and a completion ring, of size entries each. The head and
+ * tail counters only ever increase, and an entry is at its counter modulo
+ * size. The program queues a request at submitTail and increments it, and
+ * takes a completion at completeHead and increments it. The kernel advances
+ * submitHead and completeTail.
+ */
+struct ioRing {
+    int size;
+    struct ioRequest *requests;
+    struct ioCompletion *completions;
+    unsigned int submitHead, submitTail;
+    unsigned int completeHead, completeTail;
+};
+
+/**
+ * Have the kernel perform the requests queued in ring, in order, without a
+ * system call for each. A kernel thread works through the requests while the
+ * program runs, performing each one as the system call named by its opcode
+ * would, and posts each result to the completion ring. A request is only
+ * taken when the completion ring has room for its result.
+ *
+ * submit() waits until at least minComplete completions are waiting, or
+ * until the kernel can take no more requests. A process has a single ring,
+ * the one it passes to its first submit() call.
+ *
+ * Returns the number of completions waiting, or -1 if an error occurred.
+ */
+int submit(struct ioRing *ring, int minComplete);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
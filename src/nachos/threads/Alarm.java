@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.PriorityQueue;
+
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
@@ -15,8 +17,6 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
-        lock = new Lock();
-        cond = new Condition2(lock);
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() {
 		    timerInterrupt();
@@ -31,12 +31,10 @@ public class Alarm {
      * that should be run.
      */
     public void timerInterrupt() {
-        if(Machine.timer().getTime() > wakeTime)
-        {
-            lock.acquire();
-            cond.wakeAll();
-            lock.release();
-        }
+	// runs with interrupts disabled, so it must not block on a lock
+	long time = Machine.timer().getTime();
+	while (!waiters.isEmpty() && waiters.peek().wakeTime <= time)
+	    waiters.poll().thread.ready();
     }
 
     /**
@@ -54,14 +52,29 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-        // for now, cheat just to get something working (busy waiting is bad)
-        wakeTime = Machine.timer().getTime() + x;
-        lock.acquire();
-        cond.sleep();
-        lock.release();
+	boolean intStatus = Machine.interrupt().disable();
+
+	waiters.add(new Waiter(KThread.currentThread(),
+			       Machine.timer().getTime() + x));
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+	Waiter(KThread thread, long wakeTime) {
+	    this.thread = thread;
+	    this.wakeTime = wakeTime;
+	}
+
+	public int compareTo(Waiter other) {
+	    return Long.compare(wakeTime, other.wakeTime);
+	}
+
+	KThread thread;
+	long wakeTime;
     }
 
-    private long wakeTime = 0;
-    private Lock lock = null;
-    private Condition2 cond = null;
+    /** The sleeping threads, the one to wake first at the head. */
+    private PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>();
 }
@@ -17,7 +17,8 @@ public class Condition2 {
 
 
     private Lock conditionLock;
-    private ThreadQueue waitQ = ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue waitQ = ThreadedKernel.scheduler.newThreadQueue(false);
+    private LockProfiler.Record profile;
     /**
      * Allocate a new condition variable.
      *
@@ -27,7 +28,21 @@ public class Condition2 {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
+	this(conditionLock, null);
+    }
+
+    /**
+     * Allocate a new named condition variable. The name is only used to
+     * identify this condition variable in the <tt>LockProfiler</tt> report.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name to give to this condition variable,
+     *				or <tt>null</tt>.
+     */
+    public Condition2(Lock conditionLock, String name) {
 	this.conditionLock = conditionLock;
+	profile = LockProfiler.register("condition", name);
     }
 
     /**
@@ -47,7 +62,10 @@ public class Condition2 {
         conditionLock.release();
 
         intStatus = Machine.interrupt().disable();
+        long waitStart = (profile != null) ? LockProfiler.now() : 0;
         KThread.currentThread().sleep();
+        if (profile != null)
+            profile.contended(LockProfiler.now() - waitStart);
         Machine.interrupt().restore(intStatus);
 
         conditionLock.acquire();
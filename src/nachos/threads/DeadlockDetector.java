@@ -0,0 +1,145 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Watches the lock queues of a <tt>PriorityScheduler</tt> for deadlocks and
+ * lock convoys. Enabled by the <tt>nachos.conf</tt> key
+ * <tt>DeadlockDetector.enabled</tt>.
+ *
+ * <p>
+ * A thread can only wait for one lock at a time, and every lock has at most
+ * one holder, so the wait-for graph has at most one outgoing edge per thread.
+ * A cycle can only be closed by a thread that starts waiting, so following
+ * the chain of holders from the new edge is enough to find every deadlock as
+ * soon as it forms. If <tt>DeadlockDetector.haltOnDeadlock</tt> is
+ * <tt>true</tt> (the default), the machine is halted after the cycle is
+ * reported, instead of idling forever.
+ *
+ * <p>
+ * A convoy is reported when the same lock is handed directly from holder to
+ * waiter more than <tt>DeadlockDetector.convoyLength</tt> times in a row
+ * without ever becoming free.
+ */
+public class DeadlockDetector {
+    /**
+     * Allocate a new detector, reading its settings from <tt>nachos.conf</tt>.
+     */
+    DeadlockDetector() {
+        convoyLength = Config.getInteger("DeadlockDetector.convoyLength", 8);
+        haltOnDeadlock = Config.getBoolean("DeadlockDetector.haltOnDeadlock", true);
+
+        Machine.addHaltNotificationHandler(new Runnable() {
+            public void run() {
+                print();
+            }
+        });
+    }
+
+    /**
+     * Test whether deadlock detection is enabled.
+     *
+     * @return <tt>true</tt> if <tt>DeadlockDetector.enabled</tt> is set.
+     */
+    public static boolean isEnabled() {
+        return Config.getBoolean("DeadlockDetector.enabled", false);
+    }
+
+    /**
+     * Called when a thread blocks on a lock queue. Adds the edge from the
+     * thread to the holder of the queue and checks whether it closes a cycle.
+     *
+     * @param thread the thread that is now waiting.
+     * @param queue  the queue it is waiting on.
+     */
+    void waiting(PriorityScheduler.ThreadState thread,
+                 PriorityScheduler.PriorityQueue queue) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        numWaiting++;
+
+        // any cycle that does not contain this thread was reported when it
+        // formed, so give up once the walk is longer than the graph
+        PriorityScheduler.ThreadState holder = queue.lockHolder;
+        for (int steps = 0; holder != null && steps < numWaiting; steps++) {
+            if (holder == thread) {
+                deadlock(thread);
+                return;
+            }
+            if (holder.waitingFor == null)
+                return;
+            holder = holder.waitingFor.lockHolder;
+        }
+    }
+
+    /**
+     * Called when a lock queue hands ownership to the next thread, or when
+     * it becomes free because nobody is waiting.
+     *
+     * @param queue  the queue that changed hands.
+     * @param thread the thread that was handed ownership, or <tt>null</tt> if
+     *               the queue is now free.
+     */
+    void handedOff(PriorityScheduler.PriorityQueue queue,
+                   PriorityScheduler.ThreadState thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        if (thread == null) {
+            queue.handoffs = 0;
+            return;
+        }
+
+        numWaiting--;
+
+        if (++queue.handoffs == convoyLength + 1) {
+            numConvoys++;
+            System.out.println("Lock convoy: lock handed through "
+                    + queue.handoffs + " waiters in a row, now held by "
+                    + thread.thread);
+        }
+        longestConvoy = Math.max(longestConvoy, queue.handoffs);
+    }
+
+    /**
+     * Called when a thread acquires a free lock without waiting.
+     *
+     * @param queue the queue of the lock.
+     */
+    void acquired(PriorityScheduler.PriorityQueue queue) {
+        queue.handoffs = 0;
+    }
+
+    private void deadlock(PriorityScheduler.ThreadState thread) {
+        numDeadlocks++;
+
+        StringBuilder cycle = new StringBuilder("Deadlock: ");
+        cycle.append(thread.thread);
+        PriorityScheduler.ThreadState holder = thread.waitingFor.lockHolder;
+        while (holder != thread) {
+            cycle.append(" -> ").append(holder.thread);
+            holder = holder.waitingFor.lockHolder;
+        }
+        cycle.append(" -> ").append(thread.thread);
+        System.out.println(cycle);
+
+        if (haltOnDeadlock)
+            Machine.halt();
+    }
+
+    /**
+     * Print a summary of what was detected.
+     */
+    public void print() {
+        System.out.println("Deadlock detector: deadlocks " + numDeadlocks
+                + ", convoys " + numConvoys
+                + ", longest handoff chain " + longestConvoy);
+    }
+
+    private final int convoyLength;
+    private final boolean haltOnDeadlock;
+
+    private int numWaiting = 0;
+    private int numDeadlocks = 0;
+    private int numConvoys = 0;
+    private int longestConvoy = 0;
+}
@@ -317,6 +317,17 @@ public class KThread {
 		idleThread.fork();
 	}
 
+	/**
+	 * Return the number of times the CPU was dispatched from one thread to a
+	 * different thread. A thread that yields and is picked again does not
+	 * count.
+	 *
+	 * @return the number of context switches so far.
+	 */
+	public static long getNumContextSwitches() {
+		return numContextSwitches;
+	}
+
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
@@ -359,6 +370,8 @@ public class KThread {
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
+		if (currentThread != this)
+			numContextSwitches++;
 		currentThread = this;
 
 		tcb.contextSwitch();
@@ -455,6 +468,8 @@ public class KThread {
 	private int id = numCreated++;
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
+	/** Number of times <tt>run()</tt> switched to a different thread. */
+	private static long numContextSwitches = 0;
 
 	private static ThreadQueue readyQueue = null;
 	private static KThread currentThread = null;
@@ -18,12 +18,46 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * By default, <tt>release()</tt> hands the lock directly to the next waiting
+ * thread, so the lock never becomes <i>free</i> while anybody is waiting.
+ * This is fair, but a thread that releases the lock and tries to take it
+ * again right away must block and wait for every other waiter to run first.
+ * A <i>barging</i> lock instead becomes <i>free</i> on release and only
+ * wakes a waiter, so whichever thread gets to <tt>acquire()</tt> first takes
+ * it, and a woken waiter that lost the race goes back to waiting. The
+ * default mode is set by the <tt>nachos.conf</tt> key <tt>Lock.barging</tt>.
  */
 public class Lock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new named lock. The name is only used to identify this lock
+     * in the <tt>LockProfiler</tt> report.
+     *
+     * @param	name	the name to give to this lock, or <tt>null</tt>.
+     */
+    public Lock(String name) {
+	this(name, Config.getBoolean("Lock.barging", false));
+    }
+
+    /**
+     * Allocate a new named lock, choosing between direct handoff and
+     * barging.
+     *
+     * @param	name	the name to give to this lock, or <tt>null</tt>.
+     * @param	barging	<tt>true</tt> if <tt>release()</tt> should free the
+     *			lock instead of handing it to the next waiter.
+     */
+    public Lock(String name, boolean barging) {
+	this.barging = barging;
+	profile = LockProfiler.register("lock", name);
     }
 
     /**
@@ -36,15 +70,31 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
-	    waitQueue.waitForAccess(thread);
-	    KThread.sleep();
+	    long waitStart = (profile != null) ? LockProfiler.now() : 0;
+	    // with direct handoff we already hold the lock when we are woken,
+	    // but a barging lock may have been taken by somebody else first
+	    do {
+		waitQueue.waitForAccess(thread);
+		KThread.sleep();
+	    } while (barging && lockHolder != null);
+
+	    if (barging) {
+		waitQueue.acquire(thread);
+		lockHolder = thread;
+	    }
+	    if (profile != null)
+		profile.contended(LockProfiler.now() - waitStart);
 	}
 	else {
 	    waitQueue.acquire(thread);
 	    lockHolder = thread;
+	    if (profile != null)
+		profile.acquired();
 	}
 
 	Lib.assertTrue(lockHolder == thread);
+	if (profile != null)
+	    acquireTime = LockProfiler.now();
 
 	Machine.interrupt().restore(intStatus);
     }
@@ -56,8 +106,20 @@ public class Lock {
 	Lib.assertTrue(isHeldByCurrentThread());
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
+	if (profile != null)
+	    profile.held(LockProfiler.now() - acquireTime);
+
+	if (barging) {
+	    // the woken thread keeps receiving donations until somebody
+	    // actually takes the lock
+	    lockHolder = null;
+	    KThread thread = waitQueue.nextThread();
+	    if (thread != null)
+		thread.ready();
+	}
+	else if ((lockHolder = waitQueue.nextThread()) != null) {
 	    lockHolder.ready();
+	}
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -70,7 +132,111 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Test that both direct handoff and barging locks provide mutual
+     * exclusion. If the <tt>nachos.conf</tt> key <tt>Lock.benchmark</tt> is
+     * <tt>true</tt>, also compare the two modes with <tt>benchmark()</tt>.
+     */
+    public static void selfTest() {
+	checkMutualExclusion(false);
+	checkMutualExclusion(true);
+
+	if (Config.getBoolean("Lock.benchmark", false)) {
+	    benchmark(false);
+	    benchmark(true);
+	}
+    }
+
+    /**
+     * Several threads repeatedly take the same lock and give up the CPU while
+     * holding it. Each one checks that nobody else got into the critical
+     * section in the meantime.
+     */
+    private static void checkMutualExclusion(boolean barging) {
+	final Lock lock = new Lock(null, barging);
+	final Semaphore done = new Semaphore(0);
+	final KThread[] inside = new KThread[1];
+
+	for (int i=0; i<benchmarkThreads; i++) {
+	    new KThread(new Runnable() {
+		public void run() {
+		    for (int j=0; j<benchmarkYieldInterval; j++) {
+			lock.acquire();
+			Lib.assertTrue(lock.isHeldByCurrentThread());
+			Lib.assertTrue(inside[0] == null);
+			inside[0] = KThread.currentThread();
+			KThread.yield();
+			Lib.assertTrue(inside[0] == KThread.currentThread());
+			inside[0] = null;
+			lock.release();
+			Lib.assertTrue(!lock.isHeldByCurrentThread());
+		    }
+		    done.V();
+		}
+	    }).setName("lock test " + i).fork();
+	}
+
+	for (int i=0; i<benchmarkThreads; i++)
+	    done.P();
+    }
+
+    /**
+     * Compare direct handoff with barging on a contended lock. Several
+     * threads repeatedly acquire and release the same lock, and every few
+     * iterations a thread gives up the CPU while holding it, as if its
+     * quantum had expired. Prints the number of context switches for each
+     * mode, and the throughput in acquisitions per millisecond of real time.
+     * Nachos does not charge simulated time for a context switch, so the
+     * simulated ticks are the same for both modes; the real time includes
+     * the cost of switching between the underlying Java threads.
+     */
+    private static void benchmark(boolean barging) {
+	final String mode = barging ? "barging" : "handoff";
+	final Lock lock = new Lock(mode + " benchmark", barging);
+	final Semaphore done = new Semaphore(0);
+
+	long startTime = Machine.timer().getTime();
+	long startNanos = System.nanoTime();
+	long startSwitches = KThread.getNumContextSwitches();
+
+	for (int i=0; i<benchmarkThreads; i++) {
+	    new KThread(new Runnable() {
+		public void run() {
+		    for (int j=0; j<benchmarkIterations; j++) {
+			lock.acquire();
+			if (j % benchmarkYieldInterval == 0)
+			    KThread.yield();
+			lock.release();
+		    }
+		    done.V();
+		}
+	    }).setName(mode + " benchmark " + i).fork();
+	}
+
+	for (int i=0; i<benchmarkThreads; i++)
+	    done.P();
+
+	long ticks = Machine.timer().getTime() - startTime;
+	long nanos = System.nanoTime() - startNanos;
+	long switches = KThread.getNumContextSwitches() - startSwitches;
+	long acquisitions = benchmarkThreads * benchmarkIterations;
+
+	System.out.println("Lock benchmark (" + mode + "): "
+			   + acquisitions + " acquisitions, " + switches
+			   + " context switches, " + ticks + " ticks, "
+			   + (acquisitions * 1000000 / Math.max(nanos, 1))
+			   + " acquisitions per ms");
+    }
+
+    private static final int benchmarkThreads = 4;
+    private static final int benchmarkIterations = 100;
+    private static final int benchmarkYieldInterval = 8;
+
+    private final boolean barging;
     private KThread lockHolder = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
+
+    private LockProfiler.Record profile;
+    private long acquireTime;
 }
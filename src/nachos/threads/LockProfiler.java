@@ -0,0 +1,241 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Collects contention statistics for the kernel synchronization primitives
+ * (<tt>Lock</tt>, <tt>Semaphore</tt> and <tt>Condition2</tt>). Profiling is
+ * off unless the <tt>nachos.conf</tt> key <tt>LockProfiler.enabled</tt> is
+ * <tt>true</tt>, in which case every primitive created afterwards gets its own
+ * <tt>Record</tt>.
+ *
+ * <p>
+ * The report is printed after the machine statistics when
+ * <tt>Machine.halt()</tt> is called. If <tt>LockProfiler.outputFile</tt> is
+ * set, the same data is also written to that file through
+ * <tt>ThreadedKernel.fileSystem</tt>, one comma-separated line per record,
+ * when the kernel terminates. The file is written before the machine halts,
+ * because the stub file system sleeps on the alarm and other threads would
+ * keep running while <tt>halt()</tt> waited for it.
+ *
+ * <p>
+ * All times are in ticks, as returned by <tt>Machine.timer().getTime()</tt>.
+ */
+public class LockProfiler {
+    /**
+     * The number of buckets in a hold-time histogram. Bucket <tt>i</tt>
+     * counts holds of less than <tt>2<sup>i</sup></tt> ticks (and at least
+     * <tt>2<sup>i-1</sup></tt>); the last bucket also counts everything
+     * longer.
+     */
+    public static final int histogramBuckets = 16;
+
+    private static Boolean enabled = null;
+    private static final List<Record> records = new ArrayList<>();
+    private static final char dbgProfile = 'l';
+
+    private LockProfiler() {
+    }
+
+    /**
+     * Test whether lock profiling is enabled.
+     *
+     * @return <tt>true</tt> if <tt>LockProfiler.enabled</tt> is set.
+     */
+    public static boolean isEnabled() {
+        if (enabled == null)
+            enabled = Config.getBoolean("LockProfiler.enabled", false);
+
+        return enabled;
+    }
+
+    /**
+     * Create a record for a newly allocated synchronization primitive.
+     *
+     * @param kind the kind of primitive (<tt>"lock"</tt>,
+     *             <tt>"semaphore"</tt> or <tt>"condition"</tt>).
+     * @param name the name given to the primitive, or <tt>null</tt>.
+     * @return a new record, or <tt>null</tt> if profiling is disabled.
+     */
+    static Record register(String kind, String name) {
+        if (!isEnabled())
+            return null;
+
+        Record record = new Record(kind, name, records.size());
+        records.add(record);
+        return record;
+    }
+
+    /**
+     * Return the current simulated time.
+     */
+    static long now() {
+        return Machine.timer().getTime();
+    }
+
+    /**
+     * Print the profile of every primitive that was used at least once, the
+     * most contended first. Does no I/O other than to <tt>System.out</tt>, so
+     * it is safe to call from <tt>Machine.halt()</tt>.
+     */
+    public static void print() {
+        List<Record> used = getUsedRecords();
+
+        System.out.println("Lock contention: " + used.size() + " of "
+                + records.size() + " primitives used");
+        for (Record record : used)
+            System.out.println("  " + record);
+    }
+
+    /**
+     * Write the profile to <tt>LockProfiler.outputFile</tt>, if profiling is
+     * enabled and that key is set. Must be called before the machine halts,
+     * from a thread that may sleep.
+     */
+    public static void save() {
+        String fileName = Config.getString("LockProfiler.outputFile");
+        if (!isEnabled() || fileName == null)
+            return;
+
+        // the stub file system sleeps on the alarm, so it can't be used from
+        // a thread that has interrupts disabled
+        if (ThreadedKernel.fileSystem == null || Machine.interrupt().disabled()) {
+            Lib.debug(dbgProfile, "cannot write lock profile to " + fileName);
+            return;
+        }
+
+        StringBuilder csv = new StringBuilder();
+        csv.append("kind,name,id,acquisitions,contended,waitTicks,maxWaitTicks,holdTicks,maxHoldTicks");
+        for (int i = 0; i < histogramBuckets; i++)
+            csv.append(",holdUnder").append(1L << i);
+        csv.append('\n');
+        for (Record record : getUsedRecords())
+            record.appendCSV(csv);
+
+        byte[] data = csv.toString().getBytes();
+        OpenFile file = ThreadedKernel.fileSystem.open(fileName, true);
+        if (file == null) {
+            Lib.debug(dbgProfile, "cannot open " + fileName);
+            return;
+        }
+        file.write(0, data, 0, data.length);
+        file.close();
+    }
+
+    private static List<Record> getUsedRecords() {
+        List<Record> used = new ArrayList<>();
+        for (Record record : records) {
+            if (record.acquisitions > 0)
+                used.add(record);
+        }
+
+        Collections.sort(used, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                return Long.compare(b.waitTicks, a.waitTicks);
+            }
+        });
+        return used;
+    }
+
+    /**
+     * The statistics collected for one synchronization primitive. For a lock,
+     * an acquisition is a call to <tt>acquire()</tt>; for a semaphore, a call
+     * to <tt>P()</tt>; for a condition variable, a call to <tt>sleep()</tt>.
+     * An acquisition is contended if the calling thread had to block. Hold
+     * times are only recorded for locks.
+     */
+    static class Record {
+        Record(String kind, String name, int id) {
+            this.kind = kind;
+            this.name = name;
+            this.id = id;
+        }
+
+        /**
+         * Record an acquisition that did not have to wait.
+         */
+        void acquired() {
+            acquisitions++;
+        }
+
+        /**
+         * Record an acquisition that blocked for the specified time.
+         *
+         * @param ticks the time spent blocked.
+         */
+        void contended(long ticks) {
+            acquisitions++;
+            contended++;
+            waitTicks += ticks;
+            maxWaitTicks = Math.max(maxWaitTicks, ticks);
+        }
+
+        /**
+         * Record that the primitive was held for the specified time.
+         *
+         * @param ticks the time between acquire and release.
+         */
+        void held(long ticks) {
+            holdTicks += ticks;
+            maxHoldTicks = Math.max(maxHoldTicks, ticks);
+
+            int bucket = 64 - Long.numberOfLeadingZeros(ticks);
+            holdHistogram[Math.min(bucket, histogramBuckets - 1)]++;
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(kind).append(" #").append(id);
+            if (name != null)
+                s.append(" (").append(name).append(")");
+            s.append(": acquisitions ").append(acquisitions)
+                    .append(", contended ").append(contended)
+                    .append(", wait total ").append(waitTicks)
+                    .append(", max ").append(maxWaitTicks);
+
+            if (holdTicks > 0 || holdHistogram[0] > 0) {
+                s.append(", hold total ").append(holdTicks)
+                        .append(", max ").append(maxHoldTicks)
+                        .append(", histogram");
+                for (int i = 0; i < histogramBuckets; i++) {
+                    if (holdHistogram[i] > 0)
+                        s.append(" <").append(1L << i).append(":")
+                                .append(holdHistogram[i]);
+                }
+            }
+            return s.toString();
+        }
+
+        void appendCSV(StringBuilder csv) {
+            csv.append(kind).append(',')
+                    .append(name == null ? "" : name).append(',')
+                    .append(id).append(',')
+                    .append(acquisitions).append(',')
+                    .append(contended).append(',')
+                    .append(waitTicks).append(',')
+                    .append(maxWaitTicks).append(',')
+                    .append(holdTicks).append(',')
+                    .append(maxHoldTicks);
+            for (int i = 0; i < histogramBuckets; i++)
+                csv.append(',').append(holdHistogram[i]);
+            csv.append('\n');
+        }
+
+        private final String kind;
+        private final String name;
+        private final int id;
+
+        private long acquisitions = 0;
+        private long contended = 0;
+        private long waitTicks = 0;
+        private long maxWaitTicks = 0;
+        private long holdTicks = 0;
+        private long maxHoldTicks = 0;
+        private final long[] holdHistogram = new long[histogramBuckets];
+    }
+}
@@ -45,8 +45,16 @@ public class PriorityScheduler extends Scheduler {
      * Allocate a new priority scheduler.
      */
     public PriorityScheduler() {
+        if (DeadlockDetector.isEnabled())
+            detector = new DeadlockDetector();
     }
 
+    /**
+     * Watches the lock queues for deadlocks and convoys, or <tt>null</tt> if
+     * <tt>DeadlockDetector.enabled</tt> is not set.
+     */
+    protected DeadlockDetector detector = null;
+
     /**
      * Allocate a new priority thread queue.
      *
@@ -133,6 +141,11 @@ public class PriorityScheduler extends Scheduler {
          */
         public boolean transferPriority;
         protected ThreadState lockHolder = null;
+        /**
+         * The number of times in a row this queue was handed directly from
+         * one holder to a waiter, without becoming free in between.
+         */
+        protected int handoffs = 0;
 		private LinkedList<ThreadState> waitQueue;
 
         PriorityQueue(boolean transferPriority) {
@@ -153,24 +166,49 @@ public class PriorityScheduler extends Scheduler {
         public KThread nextThread() {
             Lib.assertTrue(Machine.interrupt().disabled());
 
-            KThread thread = null;
-
             ThreadState maxPriorityThread = pickNextThread();
 
+            if(maxPriorityThread != null)
+                waitQueue.removeFirstOccurrence(maxPriorityThread);
+
+            if(transferPriority)
+            {
+                setLockHolder(maxPriorityThread);
+                if(detector != null)
+                    detector.handedOff(this, maxPriorityThread);
+            }
+
+            return (maxPriorityThread != null) ? maxPriorityThread.thread : null;
+        }
+
+        /**
+         * Make the specified thread the holder of this queue, so that the
+         * threads still waiting donate their priority to it instead of to the
+         * previous holder. The new holder may be the previous holder, and
+         * threads may still be waiting when a barging lock is taken over by a
+         * thread that never waited.
+         *
+         * @param    holder    the new holder, or <tt>null</tt> if nobody
+         *                     holds this queue anymore.
+         */
+        protected void setLockHolder(ThreadState holder)
+        {
             if(lockHolder != null)
             {
                 lockHolder.resources.remove(this);
                 lockHolder.invalidateEffectivePriorityCache();
-                lockHolder = null;
             }
-            if(maxPriorityThread != null)
+            lockHolder = holder;
+            if(holder != null)
             {
-                lockHolder = maxPriorityThread;
-                thread = maxPriorityThread.thread;
-                waitQueue.removeFirstOccurrence(maxPriorityThread);
+                // the new holder stops waiting, and the remaining waiters donate to it instead
+                holder.waitingFor = null;
+                holder.lockHolder = null;
+                holder.resources.add(this);
+                for(ThreadState waiter : waitQueue)
+                    waiter.lockHolder = holder;
+                holder.invalidateEffectivePriorityCache();
             }
-
-            return thread;
         }
 
         // add to the waitQ
@@ -260,6 +298,10 @@ public class PriorityScheduler extends Scheduler {
         // a list of the resources the associated thread is owning
         protected List<PriorityQueue> resources = new ArrayList<>();
         protected ThreadState lockHolder;
+        // the priority-transferring queue the associated thread is blocked on
+        protected PriorityQueue waitingFor;
+        // set while walking the lock holder chain, so that a deadlock cycle can't recurse forever
+        private boolean visiting = false;
 
 
 
@@ -299,10 +341,16 @@ public class PriorityScheduler extends Scheduler {
 
         protected void invalidateEffectivePriorityCache()
         {
+            // the chain of lock holders only loops back on itself in a deadlock
+            if(visiting)
+                return;
+
+            visiting = true;
+            recalculateEffectivePriority = true;
             if(lockHolder != null) {
                 lockHolder.invalidateEffectivePriorityCache();
             }
-            recalculateEffectivePriority = true;
+            visiting = false;
         }
 
         /**
@@ -312,8 +360,9 @@ public class PriorityScheduler extends Scheduler {
          */
         public int getEffectivePriority() {
 
-            if(recalculateEffectivePriority)
+            if(recalculateEffectivePriority && !visiting)
             {
+                visiting = true;
                 if(!resources.isEmpty())
                 {
                     this.effectivePriority = priority;
@@ -329,10 +378,10 @@ public class PriorityScheduler extends Scheduler {
                 {
                     effectivePriority = priority;
                 }
-
+                visiting = false;
+                recalculateEffectivePriority = false;
             }
 
-            recalculateEffectivePriority = false;
             return effectivePriority;
         }
 
@@ -349,9 +398,15 @@ public class PriorityScheduler extends Scheduler {
          */
         public void waitForAccess(PriorityQueue waitQueue) {
             waitQueue.add(this);
-            if(waitQueue.transferPriority && waitQueue.lockHolder != null)
+            if(waitQueue.transferPriority)
             {
+                waitingFor = waitQueue;
                 lockHolder = waitQueue.lockHolder;
+                if(detector != null)
+                    detector.waiting(this, waitQueue);
+                // the holder has one more thread donating to it
+                if(lockHolder != null)
+                    lockHolder.invalidateEffectivePriorityCache();
             }
         }
 
@@ -367,10 +422,10 @@ public class PriorityScheduler extends Scheduler {
          * @see    nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            Lib.assertTrue(waitQueue.isEmpty());
             if(waitQueue.transferPriority) {
-                resources.add(waitQueue);
-                waitQueue.lockHolder = getThreadState(this.thread);
+                waitQueue.setLockHolder(this);
+                if(detector != null)
+                    detector.acquired(waitQueue);
             }
         }
 
@@ -68,8 +68,6 @@ public class RoundRobinScheduler extends Scheduler {
          */
         public void acquire(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
-
-            Lib.assertTrue(waitQueue.isEmpty());
         }
 
         /**
@@ -28,7 +28,20 @@ public class Semaphore {
      * @param	initialValue	the initial value of this semaphore.
      */
     public Semaphore(int initialValue) {
+	this(initialValue, null);
+    }
+
+    /**
+     * Allocate a new named semaphore. The name is only used to identify this
+     * semaphore in the <tt>LockProfiler</tt> report.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name to give to this semaphore, or
+     *				<tt>null</tt>.
+     */
+    public Semaphore(int initialValue, String name) {
 	value = initialValue;
+	profile = LockProfiler.register("semaphore", name);
     }
 
     /**
@@ -38,11 +51,16 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
+	    long waitStart = (profile != null) ? LockProfiler.now() : 0;
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
+	    if (profile != null)
+		profile.contended(LockProfiler.now() - waitStart);
 	}
 	else {
 	    value--;
+	    if (profile != null)
+		profile.acquired();
 	}
 
 	Machine.interrupt().restore(intStatus);
@@ -101,4 +119,6 @@ public class Semaphore {
     private int value;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    private LockProfiler.Record profile;
 }
@@ -84,7 +84,9 @@ public abstract class ThreadQueue {
      *
      * <p>
      * This method should not be called for a thread returned from
-     * <tt>nextThread()</tt>.
+     * <tt>nextThread()</tt>, except by a barging lock, where the woken thread
+     * must compete for the lock again. A barging lock may also call it while
+     * other threads are still waiting.
      *
      * @param	thread	the thread that has received access, but was not
      * 			returned from <tt>nextThread()</tt>.
@@ -31,6 +31,13 @@ public class ThreadedKernel extends Kernel {
 	else
 	    fileSystem = null;
 
+	// report lock contention when the machine halts
+	if (LockProfiler.isEnabled()) {
+	    Machine.addHaltNotificationHandler(new Runnable() {
+		    public void run() { LockProfiler.print(); }
+		});
+	}
+
 	// start threading
 	new KThread(null);
 
@@ -48,6 +55,7 @@ public class ThreadedKernel extends Kernel {
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
+	Lock.selfTest();
 	SynchList.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
@@ -65,6 +73,7 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	LockProfiler.save();
 	Machine.halt();
     }
 
@@ -0,0 +1,497 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of executables. For every program that was run, the
+ * cache keeps its section layout and a copy of each page that a process has
+ * loaded, so running the same program again needs no file I/O at all for the
+ * pages it touched before. The file is only opened and parsed when a page
+ * that was never loaded is needed, and it is closed again as soon as no
+ * process runs the program.
+ *
+ * <p>
+ * While a program is running, its read-only pages are loaded into a single
+ * physical page each, which every process running the program maps.
+ *
+ * <p>
+ * The page copies of programs that are not running are evicted in least
+ * recently used order once the cache holds more than
+ * <tt>ExecutableCache.maxBytes</tt> bytes (256 KB by default). Pages that
+ * are entirely zero take no space.
+ *
+ * <p>
+ * The file system does not report modification times, so instead of keying
+ * entries by name and modification time, an entry is dropped as soon as the
+ * file may have changed: when a process creates, unlinks or writes a file
+ * with the same name. Processes that are already running keep using the old
+ * entry until they exit.
+ *
+ * <p>
+ * The cache lock is never held while a file is opened or read, since the
+ * file system sleeps for every operation. A thread that needs a file or a
+ * page that another thread is already reading waits for it instead of
+ * reading it again.
+ */
+public class ExecutableCache {
+    /**
+     * Allocate a new, empty cache.
+     */
+    public ExecutableCache() {
+        maxBytes = Config.getInteger("ExecutableCache.maxBytes", 256 * 1024);
+    }
+
+    /**
+     * Return the executable with the specified name, parsing it if it is not
+     * cached. Every successful call must be matched by a call to
+     * <tt>release()</tt>.
+     *
+     * @param name the name of the file containing the executable.
+     * @return the executable, or <tt>null</tt> if the file could not be
+     * opened, is not a valid COFF file, or its sections are not contiguous
+     * starting at page 0.
+     */
+    public Executable open(String name) {
+        lock.acquire();
+
+        // somebody else may already be parsing the file
+        while (opening.contains(name))
+            loaded.sleep();
+
+        Executable executable = executables.get(name);
+        if (executable == null) {
+            opening.add(name);
+            int invalidations = numInvalidations;
+            lock.release();
+
+            Coff coff = openCoff(name);
+            if (coff != null) {
+                executable = new Executable(name, coff);
+                if (executable.numPages < 0) {
+                    Lib.debug(dbgProcess, "\tfragmented executable");
+                    coff.close();
+                    executable = null;
+                }
+            }
+
+            lock.acquire();
+            opening.remove(name);
+            loaded.wakeAll();
+            if (executable == null) {
+                lock.release();
+                return null;
+            }
+
+            // don't cache what we read if the file may have changed since
+            if (invalidations == numInvalidations) {
+                executables.put(name, executable);
+                executable.cached = true;
+            }
+            numMisses++;
+        }
+        else {
+            numHits++;
+        }
+        executable.refCount++;
+
+        lock.release();
+        return executable;
+    }
+
+    /**
+     * Add a reference to an executable returned by <tt>open()</tt>, for a
+     * process that runs it without opening it, such as a forked child. Every
+     * call must be matched by a call to <tt>release()</tt>.
+     *
+     * @param executable the executable.
+     */
+    public void retain(Executable executable) {
+        lock.acquire();
+
+        Lib.assertTrue(executable.refCount > 0);
+        executable.refCount++;
+
+        lock.release();
+    }
+
+    /**
+     * Release an executable returned by <tt>open()</tt>. Once no process
+     * runs it anymore, its file is closed and its shared pages are freed,
+     * but the copies of its pages stay cached.
+     *
+     * @param executable the executable the process is done with.
+     */
+    public void release(Executable executable) {
+        lock.acquire();
+
+        Lib.assertTrue(executable.refCount > 0);
+        if (--executable.refCount == 0) {
+            if (executable.coff != null) {
+                executable.coff.close();
+                executable.coff = null;
+            }
+
+            for (int vpn = 0; vpn < executable.numPages; vpn++) {
+                if (executable.sharedFrames[vpn] != -1) {
+                    UserKernel.freeFrame(executable.sharedFrames[vpn]);
+                    executable.sharedFrames[vpn] = -1;
+                }
+            }
+            UserKernel.unreserveFrames(executable.numSharedFrames);
+            executable.numSharedFrames = 0;
+
+            evict();
+        }
+
+        lock.release();
+    }
+
+    /**
+     * Forget the executable with the specified name, because the file may
+     * have changed. The next <tt>open()</tt> reads the file again.
+     *
+     * @param name the name of the file.
+     */
+    public void invalidate(String name) {
+        lock.acquire();
+
+        numInvalidations++;
+        Executable executable = executables.remove(name);
+        if (executable != null) {
+            executable.cached = false;
+            numBytes -= executable.numBytes;
+        }
+
+        lock.release();
+    }
+
+    /**
+     * Fill a private physical page with the contents of a page of an
+     * executable.
+     *
+     * @param executable the executable.
+     * @param vpn        a page covered by one of its sections.
+     * @param ppn        the physical page to fill.
+     * @return <tt>true</tt> if successful, or <tt>false</tt> if the page
+     * had to be read from a file that can no longer be opened.
+     */
+    public boolean loadPage(Executable executable, int vpn, int ppn) {
+        lock.acquire();
+        boolean loaded = fillPage(executable, vpn, ppn);
+        lock.release();
+        return loaded;
+    }
+
+    /**
+     * Return the physical page shared by every process running the
+     * executable for a read-only page, loading it the first time. A
+     * reference to the page is added for the caller, to be dropped with
+     * <tt>UserKernel.freeFrame()</tt>.
+     *
+     * @param executable the executable.
+     * @param vpn        a read-only page covered by one of its sections.
+     * @return the shared physical page, or -1 if none could be allocated,
+     * in which case the caller should load a private copy instead.
+     */
+    public int mapSharedPage(Executable executable, int vpn) {
+        Lib.assertTrue(executable.readOnly[vpn]);
+
+        lock.acquire();
+
+        // another process may be loading the page, possibly to share it
+        while (executable.loading[vpn])
+            loaded.sleep();
+
+        int ppn = executable.sharedFrames[vpn];
+        if (ppn == -1) {
+            // the page outlives the process that loads it, so it needs a
+            // reservation of its own
+            if (!UserKernel.reserveFrames(1)) {
+                lock.release();
+                return -1;
+            }
+            ppn = UserKernel.allocateFrame();
+            if (ppn == -1 || !fillPage(executable, vpn, ppn)) {
+                if (ppn != -1)
+                    UserKernel.freeFrame(ppn);
+                UserKernel.unreserveFrames(1);
+                lock.release();
+                return -1;
+            }
+            executable.sharedFrames[vpn] = ppn;
+            executable.numSharedFrames++;
+        }
+        UserKernel.shareFrame(ppn);
+
+        lock.release();
+        return ppn;
+    }
+
+    /**
+     * Return the number of <tt>open()</tt> calls that found the executable
+     * in the cache.
+     */
+    public int getNumHits() {
+        return numHits;
+    }
+
+    /**
+     * Return the number of <tt>open()</tt> calls that had to parse the file.
+     */
+    public int getNumMisses() {
+        return numMisses;
+    }
+
+    /**
+     * Return the number of pages that were loaded from a cached copy instead
+     * of the file.
+     */
+    public int getNumPageHits() {
+        return numPageHits;
+    }
+
+    /**
+     * Return the number of executables evicted to stay within the budget.
+     */
+    public int getNumEvictions() {
+        return numEvictions;
+    }
+
+    private Coff openCoff(String name) {
+        OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+        if (file == null)
+            return null;
+
+        try {
+            return new Coff(file);
+        } catch (EOFException e) {
+            file.close();
+            Lib.debug(dbgProcess, "\tcoff load failed");
+            return null;
+        }
+    }
+
+    /**
+     * Fill a physical page with a page of an executable. Called with the
+     * lock held, but releases it while the file is opened or read.
+     */
+    private boolean fillPage(Executable executable, int vpn, int ppn) {
+        byte[] memory = Machine.processor().getMemory();
+        int paddr = ppn * pageSize;
+
+        // wait for anybody reading the same page, so it can be copied
+        while (executable.loading[vpn])
+            loaded.sleep();
+
+        byte[] image = executable.images[vpn];
+        if (image == zeroPage || !executable.initialized[vpn]) {
+            Arrays.fill(memory, paddr, paddr + pageSize, (byte) 0);
+            return true;
+        }
+        if (image != null) {
+            System.arraycopy(image, 0, memory, paddr, pageSize);
+            numPageHits++;
+            return true;
+        }
+
+        executable.loading[vpn] = true;
+
+        while (executable.opening)
+            loaded.sleep();
+        if (executable.coff == null) {
+            executable.opening = true;
+            lock.release();
+            Coff coff = openCoff(executable.name);
+            lock.acquire();
+            executable.opening = false;
+            executable.coff = coff;
+        }
+
+        Coff coff = executable.coff;
+        if (coff != null) {
+            lock.release();
+            for (int s = 0; s < coff.getNumSections(); s++) {
+                CoffSection section = coff.getSection(s);
+                if (vpn >= section.getFirstVPN()
+                        && vpn < section.getFirstVPN() + section.getLength()) {
+                    section.loadPage(vpn - section.getFirstVPN(), ppn);
+                    break;
+                }
+            }
+            lock.acquire();
+        }
+
+        executable.loading[vpn] = false;
+        loaded.wakeAll();
+        if (coff == null)
+            return false;
+
+        // keep a copy, unless the file changed since the process started
+        if (executable.cached) {
+            if (isZero(memory, paddr)) {
+                executable.images[vpn] = zeroPage;
+            }
+            else {
+                executable.images[vpn] = Arrays.copyOfRange(memory, paddr, paddr + pageSize);
+                executable.numBytes += pageSize;
+                numBytes += pageSize;
+                evict();
+            }
+        }
+        return true;
+    }
+
+    private static boolean isZero(byte[] memory, int paddr) {
+        for (int i = paddr; i < paddr + pageSize; i++) {
+            if (memory[i] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drop the least recently used executables that are not running until
+     * the cache fits in its budget.
+     */
+    private void evict() {
+        Iterator<Executable> i = executables.values().iterator();
+        while (numBytes > maxBytes && i.hasNext()) {
+            Executable executable = i.next();
+            if (executable.refCount == 0) {
+                i.remove();
+                executable.cached = false;
+                numBytes -= executable.numBytes;
+                numEvictions++;
+                Lib.debug(dbgProcess, "evicted " + executable.name
+                        + " from the executable cache");
+            }
+        }
+    }
+
+    /**
+     * The layout and page copies of one executable. All pages covered by its
+     * sections are numbered from 0, since the sections are contiguous.
+     */
+    public static class Executable {
+        Executable(String name, Coff coff) {
+            this.name = name;
+            this.coff = coff;
+            entryPoint = coff.getEntryPoint();
+
+            int pages = 0;
+            for (int s = 0; s < coff.getNumSections(); s++) {
+                CoffSection section = coff.getSection(s);
+                if (section.getFirstVPN() != pages) {
+                    numPages = -1;
+                    return;
+                }
+                pages += section.getLength();
+            }
+            numPages = pages;
+
+            readOnly = new boolean[numPages];
+            initialized = new boolean[numPages];
+            for (int s = 0; s < coff.getNumSections(); s++) {
+                CoffSection section = coff.getSection(s);
+                for (int i = 0; i < section.getLength(); i++) {
+                    readOnly[section.getFirstVPN() + i] = section.isReadOnly();
+                    initialized[section.getFirstVPN() + i] = section.isInitialzed();
+                }
+            }
+
+            images = new byte[numPages][];
+            loading = new boolean[numPages];
+            sharedFrames = new int[numPages];
+            Arrays.fill(sharedFrames, -1);
+        }
+
+        /**
+         * Return the name of the file this executable was read from.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Return the program's entry point.
+         */
+        public int getEntryPoint() {
+            return entryPoint;
+        }
+
+        /**
+         * Return the number of pages covered by the program's sections.
+         */
+        public int getNumPages() {
+            return numPages;
+        }
+
+        /**
+         * Test whether a page belongs to a read-only section.
+         *
+         * @param vpn a page covered by one of the sections.
+         */
+        public boolean isReadOnly(int vpn) {
+            return readOnly[vpn];
+        }
+
+        /**
+         * Test whether a page belongs to a section with contents in the
+         * file. Pages of other sections, such as the bss, start out as
+         * zeros.
+         *
+         * @param vpn a page covered by one of the sections.
+         */
+        public boolean isInitialized(int vpn) {
+            return initialized[vpn];
+        }
+
+        private final String name;
+        private final int entryPoint;
+        private int numPages;
+        private boolean[] readOnly;
+        private boolean[] initialized;
+
+        /** Open while a process runs the program, otherwise <tt>null</tt>. */
+        private Coff coff;
+        /** Whether a thread is opening the file again for a page. */
+        private boolean opening = false;
+        private byte[][] images;
+        /** Whether a thread is reading each page from the file. */
+        private boolean[] loading;
+        private int numBytes = 0;
+        private int[] sharedFrames;
+        private int numSharedFrames = 0;
+        private int refCount = 0;
+        private boolean cached = false;
+    }
+
+    /** Marks a cached page that is entirely zero. */
+    private static final byte[] zeroPage = new byte[0];
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgProcess = 'a';
+
+    private final int maxBytes;
+    private final Lock lock = new Lock("executable cache");
+    /** Signalled when a file has been opened or a page read. */
+    private final Condition2 loaded = new Condition2(lock, "executable loaded");
+    /** Names of the files being parsed by <tt>open()</tt>. */
+    private final HashSet<String> opening = new HashSet<>();
+    private int numInvalidations = 0;
+    // in access order, so iteration starts at the least recently used
+    private final LinkedHashMap<String, Executable> executables =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private int numBytes = 0;
+    private int numHits = 0;
+    private int numMisses = 0;
+    private int numPageHits = 0;
+    private int numEvictions = 0;
+}
@@ -0,0 +1,288 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A page table that stores each page as a single packed <tt>int</tt>
+ * instead of a <tt>TranslationEntry</tt>: the physical page number in the
+ * low bits, and the valid, read-only, used and dirty bits above it, along
+ * with a copy-on-write bit that only the kernel uses.
+ *
+ * <p>
+ * The entries are kept in two levels. A directory points to leaves of
+ * <tt>leafSize</tt> pages each, and a leaf is only allocated once one of
+ * its pages is set, so a sparse address space, such as a program with a
+ * file mapped far above its heap, only pays for the leaves it uses. An
+ * entry that was never set reads as invalid and writable.
+ *
+ * <p>
+ * <tt>TranslationEntry</tt> objects only exist at the boundary with the
+ * processor. With a TLB, <tt>readEntry()</tt> fills in the entry to load,
+ * and <tt>writeBack()</tt> copies back the bits the processor set. Without
+ * one, <tt>getProcessorPageTable()</tt> returns an array the processor can
+ * use directly. It only has entries for valid pages, since the processor
+ * treats a <tt>null</tt> entry as a page fault, and this table keeps it up
+ * to date as pages are mapped and unmapped. The processor also faults on
+ * pages past the end of the array, so it is built one leaf at a time and
+ * only reaches the last leaf with a valid page. Mapping a page past its
+ * end replaces it with a longer one, which the processor must be given
+ * again.
+ */
+public class PageTable {
+    /**
+     * Allocate a new page table, with every page invalid.
+     *
+     * @param numPages the number of virtual pages.
+     */
+    public PageTable(int numPages) {
+        leaves = new int[0][];
+        setNumPages(numPages);
+    }
+
+    /**
+     * Return the number of virtual pages this table covers.
+     */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * Extend this table. The new pages are invalid.
+     *
+     * @param numPages the new number of virtual pages, which may not be
+     *                 smaller than the current one.
+     */
+    public void setNumPages(int numPages) {
+        Lib.assertTrue(numPages >= this.numPages);
+
+        this.numPages = numPages;
+        int numLeaves = (numPages + leafSize - 1) / leafSize;
+        if (numLeaves > leaves.length)
+            leaves = Arrays.copyOf(leaves, numLeaves);
+    }
+
+    public boolean isValid(int vpn) {
+        return (get(vpn) & validBit) != 0;
+    }
+
+    public int getPPN(int vpn) {
+        return get(vpn) & ppnMask;
+    }
+
+    public boolean isReadOnly(int vpn) {
+        return (get(vpn) & readOnlyBit) != 0;
+    }
+
+    public boolean isUsed(int vpn) {
+        return (get(vpn) & usedBit) != 0;
+    }
+
+    public boolean isDirty(int vpn) {
+        return (get(vpn) & dirtyBit) != 0;
+    }
+
+    /**
+     * Test whether a page is read-only only because its physical page is
+     * shared, and gets a copy of its own on the first write.
+     *
+     * @param vpn the virtual page.
+     */
+    public boolean isCopyOnWrite(int vpn) {
+        return (get(vpn) & copyOnWriteBit) != 0;
+    }
+
+    /**
+     * Map a virtual page to a physical page and make it valid. Its other
+     * bits are left as they are.
+     *
+     * @param vpn the virtual page.
+     * @param ppn the physical page that backs it.
+     */
+    public void map(int vpn, int ppn) {
+        Lib.assertTrue(ppn >= 0 && ppn <= ppnMask);
+        set(vpn, (get(vpn) & ~ppnMask) | ppn | validBit);
+    }
+
+    /**
+     * Make a virtual page invalid. Its other bits are left as they are.
+     *
+     * @param vpn the virtual page.
+     */
+    public void unmap(int vpn) {
+        setBit(vpn, validBit, false);
+    }
+
+    /**
+     * Make a virtual page invalid and writable, with all its bits clear, as
+     * if it had never been set.
+     *
+     * @param vpn the virtual page.
+     */
+    public void clear(int vpn) {
+        set(vpn, 0);
+    }
+
+    public void setReadOnly(int vpn, boolean readOnly) {
+        setBit(vpn, readOnlyBit, readOnly);
+    }
+
+    public void setUsed(int vpn, boolean used) {
+        setBit(vpn, usedBit, used);
+    }
+
+    public void setDirty(int vpn, boolean dirty) {
+        setBit(vpn, dirtyBit, dirty);
+    }
+
+    /**
+     * Mark a page as copy-on-write, which also makes it read-only, or as
+     * writable again.
+     *
+     * @param vpn         the virtual page.
+     * @param copyOnWrite <tt>true</tt> to make the page copy-on-write, or
+     *                    <tt>false</tt> to make it writable.
+     */
+    public void setCopyOnWrite(int vpn, boolean copyOnWrite) {
+        int bits = get(vpn) & ~(readOnlyBit | copyOnWriteBit);
+        set(vpn, copyOnWrite ? (bits | readOnlyBit | copyOnWriteBit) : bits);
+    }
+
+    /**
+     * Fill in a translation entry for a virtual page, to be loaded into the
+     * TLB.
+     *
+     * @param vpn   the virtual page.
+     * @param entry the entry to fill in.
+     */
+    public void readEntry(int vpn, TranslationEntry entry) {
+        int bits = get(vpn);
+        entry.vpn = vpn;
+        entry.ppn = bits & ppnMask;
+        entry.valid = (bits & validBit) != 0;
+        entry.readOnly = (bits & readOnlyBit) != 0;
+        entry.used = (bits & usedBit) != 0;
+        entry.dirty = (bits & dirtyBit) != 0;
+    }
+
+    /**
+     * Copy the used and dirty bits the processor set in a translation entry
+     * back to this table. Bits that are clear in the entry are left as they
+     * are here.
+     *
+     * @param entry a translation entry for a page of this table.
+     */
+    public void writeBack(TranslationEntry entry) {
+        int bits = get(entry.vpn);
+        if (entry.used)
+            bits |= usedBit;
+        if (entry.dirty)
+            bits |= dirtyBit;
+        set(entry.vpn, bits);
+    }
+
+    /**
+     * Return an array of translation entries, indexed by virtual page, for
+     * a processor without a TLB. Valid pages have an entry, and invalid ones
+     * are <tt>null</tt> or past the end of the array. The array is replaced
+     * when a page past its end is mapped, so this must be called again
+     * before the processor can use that page.
+     *
+     * @return the page table to give the processor.
+     */
+    public TranslationEntry[] getProcessorPageTable() {
+        if (processorPageTable == null) {
+            processorPageTable = new TranslationEntry[0];
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i] == null)
+                    continue;
+
+                for (int vpn = i * leafSize; vpn < (i + 1) * leafSize && vpn < numPages; vpn++) {
+                    int bits = leaves[i][vpn & leafMask];
+                    if ((bits & validBit) != 0)
+                        updateProcessorEntry(vpn, bits);
+                }
+            }
+        }
+        return processorPageTable;
+    }
+
+    private int get(int vpn) {
+        int[] leaf = leaves[vpn >> leafBits];
+        int bits = (leaf == null) ? 0 : leaf[vpn & leafMask];
+
+        // the processor sets the used and dirty bits of its own entries
+        if (processorPageTable != null && vpn < processorPageTable.length
+                && processorPageTable[vpn] != null) {
+            TranslationEntry entry = processorPageTable[vpn];
+            bits &= ~(usedBit | dirtyBit);
+            if (entry.used)
+                bits |= usedBit;
+            if (entry.dirty)
+                bits |= dirtyBit;
+        }
+        return bits;
+    }
+
+    private void set(int vpn, int bits) {
+        Lib.assertTrue(vpn >= 0 && vpn < numPages);
+
+        int[] leaf = leaves[vpn >> leafBits];
+        if (leaf == null && bits != 0)
+            leaf = leaves[vpn >> leafBits] = new int[leafSize];
+        if (leaf != null)
+            leaf[vpn & leafMask] = bits;
+
+        if (processorPageTable != null)
+            updateProcessorEntry(vpn, bits);
+    }
+
+    private void setBit(int vpn, int bit, boolean value) {
+        int bits = get(vpn);
+        set(vpn, value ? (bits | bit) : (bits & ~bit));
+    }
+
+    private void updateProcessorEntry(int vpn, int bits) {
+        if ((bits & validBit) == 0) {
+            if (vpn < processorPageTable.length)
+                processorPageTable[vpn] = null;
+            return;
+        }
+
+        // extend the array to the end of the page's leaf
+        if (vpn >= processorPageTable.length) {
+            int length = Math.min(((vpn >> leafBits) + 1) * leafSize, numPages);
+            processorPageTable = Arrays.copyOf(processorPageTable, length);
+        }
+
+        TranslationEntry entry = processorPageTable[vpn];
+        if (entry == null)
+            entry = processorPageTable[vpn] = new TranslationEntry();
+        entry.vpn = vpn;
+        entry.ppn = bits & ppnMask;
+        entry.valid = true;
+        entry.readOnly = (bits & readOnlyBit) != 0;
+        entry.used = (bits & usedBit) != 0;
+        entry.dirty = (bits & dirtyBit) != 0;
+    }
+
+    private int numPages = 0;
+    // the leaves of leafSize pages, or null for leaves never set
+    private int[][] leaves;
+    // the entries handed to a processor without a TLB, up to the last leaf
+    // with a valid page, or null
+    private TranslationEntry[] processorPageTable = null;
+
+    /** The number of pages in a leaf, which takes one page of memory. */
+    public static final int leafSize = Processor.pageSize / 4;
+    private static final int leafBits = Integer.numberOfTrailingZeros(leafSize);
+    private static final int leafMask = leafSize - 1;
+
+    private static final int ppnMask = 0x00FFFFFF;
+    private static final int validBit = 1 << 24;
+    private static final int readOnlyBit = 1 << 25;
+    private static final int usedBit = 1 << 26;
+    private static final int dirtyBit = 1 << 27;
+    private static final int copyOnWriteBit = 1 << 28;
+}
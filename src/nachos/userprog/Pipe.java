@@ -0,0 +1,240 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A pipe: a fixed-size ring buffer in the kernel, with an end that writes
+ * into it and an end that reads from it. Reading an empty pipe blocks until
+ * data is written or the write end is closed, after which reads return 0.
+ * Writing to a full pipe blocks until data is read, and writing fails once
+ * the read end is closed. The ring holds <tt>Pipe.bufferSize</tt> bytes
+ * (4096 by default).
+ *
+ * <p>
+ * Data never passes through a staging array. A process reads and writes a
+ * pipe with <tt>End.read(UserProcess, ...)</tt> and
+ * <tt>End.write(UserProcess, ...)</tt>, which copy between the ring and the
+ * physical pages behind the guest buffer, and the kernel can use the ends
+ * as ordinary <tt>OpenFile</tt>s.
+ */
+public class Pipe {
+    /**
+     * Allocate a new, empty pipe with both ends open.
+     */
+    public Pipe() {
+        buffer = new byte[Config.getInteger("Pipe.bufferSize", 4096)];
+        Lib.assertTrue(buffer.length > 0);
+    }
+
+    /**
+     * Return the end of this pipe that reads from it.
+     */
+    public End openForReading() {
+        return readEnd;
+    }
+
+    /**
+     * Return the end of this pipe that writes to it.
+     */
+    public End openForWriting() {
+        return writeEnd;
+    }
+
+    /**
+     * One end of a pipe, which can only read or only write. Closing it
+     * closes that end of the pipe for good.
+     */
+    public class End extends OpenFile {
+        private End(boolean reading) {
+            super(null, "pipe");
+            this.reading = reading;
+        }
+
+        /**
+         * Read up to <i>length</i> bytes into the virtual memory of a
+         * process, blocking while the pipe is empty and the write end is
+         * open.
+         *
+         * @param process the process to read into.
+         * @param vaddr   the first byte of virtual memory to write.
+         * @param length  the maximum number of bytes to read.
+         * @return the number of bytes read, 0 if the write end is closed and
+         * the pipe is empty, or -1 if this is the write end or no data could
+         * be copied into the process.
+         */
+        public int read(UserProcess process, int vaddr, int length) {
+            if (!reading || closed) {
+                return -1;
+            }
+            if (length == 0) {
+                return 0;
+            }
+
+            lock.acquire();
+            waitForData();
+            int n = Math.min(length, count);
+            int amount = (n > 0) ? process.writeVirtualMemory(vaddr, ring, n) : 0;
+            if (amount > 0) {
+                spaceAvailable.wakeAll();
+            }
+            lock.release();
+
+            return (n > 0 && amount <= 0) ? -1 : amount;
+        }
+
+        /**
+         * Write <i>length</i> bytes from the virtual memory of a process,
+         * blocking while the pipe is full and the read end is open.
+         *
+         * @param process the process to write from.
+         * @param vaddr   the first byte of virtual memory to read.
+         * @param length  the number of bytes to write.
+         * @return the number of bytes written, which is smaller than
+         * <i>length</i> if the read end was closed or part of the buffer
+         * could not be read, or -1 if this is the read end or nothing was
+         * written.
+         */
+        public int write(UserProcess process, int vaddr, int length) {
+            if (reading || closed) {
+                return -1;
+            }
+
+            lock.acquire();
+            int total = 0;
+            while (total < length) {
+                waitForSpace();
+                if (!readerOpen) {
+                    break;
+                }
+
+                int n = Math.min(length - total, buffer.length - count);
+                int amount = process.readVirtualMemory(vaddr + total, ring, n);
+                if (amount <= 0) {
+                    break;
+                }
+                total += amount;
+                dataAvailable.wakeAll();
+                if (amount < n) {
+                    break;
+                }
+            }
+            lock.release();
+
+            return (length > 0 && total == 0) ? -1 : total;
+        }
+
+        public int read(byte[] buf, int offset, int length) {
+            if (!reading || closed) {
+                return -1;
+            }
+
+            lock.acquire();
+            waitForData();
+            int amount = ring.read(buf, offset, length);
+            if (amount > 0) {
+                spaceAvailable.wakeAll();
+            }
+            lock.release();
+
+            return amount;
+        }
+
+        public int write(byte[] buf, int offset, int length) {
+            if (reading || closed) {
+                return -1;
+            }
+
+            lock.acquire();
+            int total = 0;
+            while (total < length) {
+                waitForSpace();
+                if (!readerOpen) {
+                    break;
+                }
+
+                total += ring.write(buf, offset + total, length - total);
+                dataAvailable.wakeAll();
+            }
+            lock.release();
+
+            return (length > 0 && total == 0) ? -1 : total;
+        }
+
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            lock.acquire();
+            if (reading) {
+                readerOpen = false;
+                spaceAvailable.wakeAll();
+            }
+            else {
+                writerOpen = false;
+                dataAvailable.wakeAll();
+            }
+            lock.release();
+        }
+
+        private final boolean reading;
+        private boolean closed = false;
+    }
+
+    private void waitForData() {
+        while (count == 0 && writerOpen) {
+            dataAvailable.sleep();
+        }
+    }
+
+    private void waitForSpace() {
+        while (count == buffer.length && readerOpen) {
+            spaceAvailable.sleep();
+        }
+    }
+
+    /**
+     * Copies between the ring and an array, or a run of physical memory,
+     * without blocking. Its callers hold <tt>lock</tt> and have checked that
+     * there is enough data or space.
+     */
+    private final OpenFile ring = new OpenFile(null, "pipe") {
+        public int read(byte[] buf, int offset, int length) {
+            int amount = Math.min(length, count);
+            int first = Math.min(amount, buffer.length - head);
+            System.arraycopy(buffer, head, buf, offset, first);
+            System.arraycopy(buffer, 0, buf, offset + first, amount - first);
+
+            head = (head + amount) % buffer.length;
+            count -= amount;
+            return amount;
+        }
+
+        public int write(byte[] buf, int offset, int length) {
+            int amount = Math.min(length, buffer.length - count);
+            int tail = (head + count) % buffer.length;
+            int first = Math.min(amount, buffer.length - tail);
+            System.arraycopy(buf, offset, buffer, tail, first);
+            System.arraycopy(buf, offset + first, buffer, 0, amount - first);
+
+            count += amount;
+            return amount;
+        }
+    };
+
+    private final byte[] buffer;
+    // the first byte of data in buffer, and the number of bytes of data
+    private int head = 0;
+    private int count = 0;
+    private boolean readerOpen = true;
+    private boolean writerOpen = true;
+
+    private final Lock lock = new Lock("pipe");
+    private final Condition2 dataAvailable = new Condition2(lock, "pipe data");
+    private final Condition2 spaceAvailable = new Condition2(lock, "pipe space");
+
+    private final End readEnd = new End(true);
+    private final End writeEnd = new End(false);
+}
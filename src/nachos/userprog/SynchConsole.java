@@ -99,10 +99,10 @@ public class SynchConsole {
     private boolean charAvailable = false;
 
     private SerialConsole console;
-    private Lock readLock = new Lock();
-    private Lock writeLock = new Lock();
-    private Semaphore readWait = new Semaphore(0);
-    private Semaphore writeWait = new Semaphore(0);
+    private Lock readLock = new Lock("console read");
+    private Lock writeLock = new Lock("console write");
+    private Semaphore readWait = new Semaphore(0, "console read");
+    private Semaphore writeWait = new Semaphore(0, "console write");
 
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
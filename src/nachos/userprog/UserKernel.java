@@ -4,6 +4,9 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -23,6 +26,26 @@ public class UserKernel extends ThreadedKernel {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	freeFrames = new long[(numPhysPages + 63) / 64];
+	frameRefCounts = new int[numPhysPages];
+	for (int ppn=0; ppn<numPhysPages; ppn++)
+	    freeFrames[ppn / 64] |= 1L << (ppn % 64);
+	numFreeFrames = numPhysPages;
+	numReservedFrames = 0;
+	firstFreeWord = 0;
+	zeroFrame = -1;
+
+	executables = new ExecutableCache();
+	processes = new HashMap<Integer, UserProcess>();
+
+	// report what became of zero-fill pages when the machine halts
+	if (Config.getBoolean("UserKernel.zeroFillStats", false)) {
+	    Machine.addHaltNotificationHandler(new Runnable() {
+		    public void run() { printZeroFillStats(); }
+		});
+	}
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -61,6 +84,267 @@ public class UserKernel extends ThreadedKernel {
 	return ((UThread) KThread.currentThread()).process;
     }
 
+    /**
+     * Allocate a free physical page. The lowest-numbered free page is
+     * returned, so memory stays packed towards the bottom. The page starts
+     * out with one reference, held by the caller.
+     *
+     * @return	the number of the allocated page, or -1 if all physical pages
+     *		are in use.
+     */
+    public static int allocateFrame() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ppn = -1;
+	// every word below firstFreeWord is known to be full
+	for (int word=firstFreeWord; word<freeFrames.length; word++) {
+	    if (freeFrames[word] != 0) {
+		int bit = Long.numberOfTrailingZeros(freeFrames[word]);
+		freeFrames[word] &= ~(1L << bit);
+		numFreeFrames--;
+		ppn = word * 64 + bit;
+		frameRefCounts[ppn] = 1;
+		firstFreeWord = word;
+		break;
+	    }
+	}
+	if (ppn == -1)
+	    firstFreeWord = freeFrames.length;
+
+	Machine.interrupt().restore(intStatus);
+	return ppn;
+    }
+
+    /**
+     * Drop a reference to a physical page allocated by
+     * <tt>allocateFrame()</tt>. The page is returned to the free pool when
+     * its last reference is dropped.
+     *
+     * @param	ppn	the page to free.
+     */
+    public static void freeFrame(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(frameRefCounts[ppn] > 0);
+	if (--frameRefCounts[ppn] == 0) {
+	    int word = ppn / 64;
+	    long bit = 1L << (ppn % 64);
+	    Lib.assertTrue((freeFrames[word] & bit) == 0);
+	    freeFrames[word] |= bit;
+	    numFreeFrames++;
+	    firstFreeWord = Math.min(firstFreeWord, word);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Add a reference to an allocated physical page, so that it can be
+     * mapped by more than one page table. Each reference is dropped with
+     * <tt>freeFrame()</tt>.
+     *
+     * @param	ppn	the page to share.
+     */
+    public static void shareFrame(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(frameRefCounts[ppn] > 0);
+	frameRefCounts[ppn]++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of references to a physical page.
+     *
+     * @param	ppn	the page.
+     * @return	the number of references, or 0 if the page is free.
+     */
+    public static int getFrameRefCount(int ppn) {
+	return frameRefCounts[ppn];
+    }
+
+    /**
+     * Return the zero page: a physical page that is always filled with
+     * zeros, for processes to map read-only in place of pages that start out
+     * as zeros. It is allocated, with a reservation of its own, the first
+     * time it is needed, and kept until <tt>releaseZeroFrame()</tt> frees
+     * it. A reference to it is added for the caller, to be dropped with
+     * <tt>freeFrame()</tt>.
+     *
+     * @return	the zero page, or -1 if no physical page could be reserved
+     *		and allocated for it.
+     */
+    public static int mapZeroFrame() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (zeroFrame == -1 && numFreeFrames > 0 && reserveFrames(1)) {
+	    zeroFrame = allocateFrame();
+
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, zeroFrame * Processor.pageSize,
+			(zeroFrame + 1) * Processor.pageSize, (byte) 0);
+	}
+	if (zeroFrame != -1)
+	    frameRefCounts[zeroFrame]++;
+
+	Machine.interrupt().restore(intStatus);
+	return zeroFrame;
+    }
+
+    /**
+     * Free the zero page if no process maps it, so that its physical page
+     * can be put to other use. It is allocated again the next time it is
+     * needed.
+     *
+     * @return	<tt>true</tt> if the zero page was freed.
+     */
+    public static boolean releaseZeroFrame() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean released = false;
+	// the last reference is the one taken when it was allocated
+	if (zeroFrame != -1 && frameRefCounts[zeroFrame] == 1) {
+	    freeFrame(zeroFrame);
+	    unreserveFrames(1);
+	    zeroFrame = -1;
+	    released = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return released;
+    }
+
+    /**
+     * Test whether a physical page is the zero page.
+     *
+     * @param	ppn	the physical page.
+     */
+    public static boolean isZeroFrame(int ppn) {
+	return ppn == zeroFrame;
+    }
+
+    /**
+     * Record what became of a page of a process that started out as zeros:
+     * a page of the stack, the bss or the arguments.
+     *
+     * @param	touched	<tt>true</tt> if the process ever accessed the page.
+     * @param	written	<tt>true</tt> if the process wrote to the page.
+     */
+    public static void countZeroFillPage(boolean touched, boolean written) {
+	if (!touched)
+	    numZeroPagesUntouched++;
+	else if (!written)
+	    numZeroPagesRead++;
+	else
+	    numZeroPagesWritten++;
+    }
+
+    /**
+     * Print the zero-fill statistics, counting the pages of the processes
+     * that are still running as well as those that exited.
+     */
+    private static void printZeroFillStats() {
+	for (UserProcess process : processes.values())
+	    process.countZeroFillPages();
+
+	System.out.println("Zero-fill pages: never touched "
+			   + numZeroPagesUntouched + ", only read "
+			   + numZeroPagesRead + ", written "
+			   + numZeroPagesWritten);
+    }
+
+    /**
+     * Return the number of physical pages that are not allocated.
+     *
+     * @return	the number of free physical pages.
+     */
+    public static int getNumFreeFrames() {
+	return numFreeFrames;
+    }
+
+    /**
+     * Promise a number of physical pages to a process that will allocate
+     * them one at a time, as it touches its pages. As long as every process
+     * allocates no more pages than it reserved, <tt>allocateFrame()</tt>
+     * never fails for them.
+     *
+     * @param	numFrames	the number of pages to reserve.
+     * @return	<tt>true</tt> if enough pages were available.
+     */
+    public static boolean reserveFrames(int numFrames) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean reserved = false;
+	if (numReservedFrames + numFrames <= Machine.processor().getNumPhysPages()) {
+	    numReservedFrames += numFrames;
+	    reserved = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return reserved;
+    }
+
+    /**
+     * Return pages reserved by <tt>reserveFrames()</tt>. The process must
+     * already have freed any of them that it allocated.
+     *
+     * @param	numFrames	the number of pages to return.
+     */
+    public static void unreserveFrames(int numFrames) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(numFrames <= numReservedFrames);
+	numReservedFrames -= numFrames;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Add a process to the process table.
+     *
+     * @param	process	the new process.
+     * @return	the process ID assigned to the process.
+     */
+    static int addProcess(UserProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int pid = nextPID++;
+	processes.put(pid, process);
+
+	Machine.interrupt().restore(intStatus);
+	return pid;
+    }
+
+    /**
+     * Remove a process that is exiting from the process table.
+     *
+     * @param	pid	the ID of the process.
+     * @return	the number of processes that are still running.
+     */
+    static int removeProcess(int pid) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(processes.remove(pid) != null);
+	int numProcesses = processes.size();
+
+	Machine.interrupt().restore(intStatus);
+	return numProcesses;
+    }
+
+    /**
+     * Return the running process with the specified ID.
+     *
+     * @param	pid	the ID of the process.
+     * @return	the process, or <tt>null</tt> if no such process is running.
+     */
+    public static UserProcess getProcess(int pid) {
+	boolean intStatus = Machine.interrupt().disable();
+	UserProcess process = processes.get(pid);
+	Machine.interrupt().restore(intStatus);
+	return process;
+    }
+
     /**
      * The exception handler. This handler is called by the processor whenever
      * a user instruction causes a processor exception.
@@ -110,6 +394,24 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** Globally accessible reference to the executables in use. */
+    public static ExecutableCache executables;
+
+    /** One bit per physical page, set if the page is free. */
+    private static long[] freeFrames;
+    private static int[] frameRefCounts;
+    private static int numFreeFrames;
+    private static int numReservedFrames;
+    private static int firstFreeWord;
+    private static int zeroFrame;
+    private static int numZeroPagesUntouched = 0;
+    private static int numZeroPagesRead = 0;
+    private static int numZeroPagesWritten = 0;
+
+    /** The running processes, by process ID. */
+    private static HashMap<Integer, UserProcess> processes;
+    private static int nextPID = 0;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
@@ -1,11 +1,13 @@
 package nachos.userprog;
 
 import nachos.machine.*;
+import nachos.threads.*;
 
-import java.io.EOFException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 
 import static nachos.threads.ThreadedKernel.fileSystem;
 
@@ -32,11 +34,35 @@ public class UserProcess {
             syscallRead = 6,
             syscallWrite = 7,
             syscallClose = 8,
-            syscallUnlink = 9;
+            syscallUnlink = 9,
+            syscallMmap = 10,
+            syscallFork = 13,
+            syscallMunmap = 14,
+            syscallSbrk = 15,
+            syscallSubmit = 16,
+            syscallDup = 17,
+            syscallDup2 = 18,
+            syscallPipe = 19,
+            syscallSendfile = 20,
+            syscallReadv = 21,
+            syscallWritev = 22;
 
     private final int MAX_STRING_ARG_LENGTH = 256;
     private static final int pageSize = Processor.pageSize;
+    // the most bytes sendfile() moves with one read and one write
+    private static final int copyChunkSize = 64 * 1024;
+    // the most buffers readv() and writev() accept, and the size of each
+    // struct iovec { base, length }
+    private static final int maxIOVectorLength = 1024;
+    private static final int ioVectorEntrySize = 8;
+    // the number of pages that 31-bit virtual addresses can reach
+    private static final int maxNumPages = (int) (0x80000000L / pageSize);
+    // mmap() only maps files this many pages above the end of the heap, so
+    // that the page table, which covers every page below a mapping, stays
+    // small
+    private static final int maxMapPages = 16384;
     private static final char dbgProcess = 'a';
+    private static int numPagesCopied = 0;
     /**
      * The number of pages in the program's stack.
      */
@@ -44,28 +70,53 @@ public class UserProcess {
     /**
      * The program being run by this process.
      */
-    protected Coff coff;
+    protected ExecutableCache.Executable executable;
     /**
      * This process's page table.
      */
-    protected TranslationEntry[] pageTable;
+    protected PageTable pageTable;
     /**
-     * The number of contiguous pages occupied by the program.
+     * The number of contiguous pages occupied by the program, its stack and
+     * its arguments. The heap grown by <tt>sbrk()</tt> starts just above
+     * them, and files mapped by <tt>mmap()</tt> lie above the heap.
      */
     protected int numPages;
+    // the registers a forked child starts with, or null
+    private int[] forkRegisters;
     private int initialPC, initialSP;
+    // the end of the heap, which starts at numPages * pageSize
+    private int heapBreak;
     private int argc, argv;
     private OpenFiles openFiles;
+    // the files mapped by mmap(), by file descriptor
+    private HashMap<Integer, MappedFile> mappedFiles = new HashMap<>();
+    // read() and write() stage data here; a process only has one thread
+    private final byte[] ioBuffer = new byte[pageSize];
+    // sendfile(), readv() and writev() copy through here; allocated by the
+    // first call to need it
+    private byte[] copyBuffer = null;
+    // the asynchronous I/O ring set up by submit(), or null
+    private IORing ioRing = null;
     private int status;
+    private int pid = -1;
+    private boolean reservedFrames = false;
+    // held while loading, copying or freeing pages, which the I/O ring's
+    // thread does too, and which can sleep
+    private final Lock pageLock = new Lock("pages");
+    private boolean zeroFillPagesCounted = false;
+    // the children this process may still join, by process ID
+    private HashMap<Integer, UserProcess> children = new HashMap<>();
+    // guards exited and exitedNormally, which the parent waits on in join()
+    private final Lock exitLock = new Lock("exit");
+    private final Condition2 exitCondition = new Condition2(exitLock, "join");
+    private boolean exited = false;
+    private boolean exitedNormally = false;
 
     /**
      * Allocate a new process.
      */
     public UserProcess() {
-        int numPhysPages = Machine.processor().getNumPhysPages();
-        pageTable = new TranslationEntry[numPhysPages];
-        for (int i = 0; i < numPhysPages; i++)
-            pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
+        pageTable = new PageTable(0);
         openFiles = new OpenFiles();
     }
 
@@ -89,14 +140,27 @@ public class UserProcess {
      * @return <tt>true</tt> if the program was successfully executed.
      */
     public boolean execute(String name, String[] args) {
-        if (!load(name, args))
+        // assigned first, so the process ID is known while loading
+        pid = UserKernel.addProcess(this);
+        if (!load(name, args)) {
+            UserKernel.removeProcess(pid);
             return false;
+        }
 
         new UThread(this).setName(name).fork();
 
         return true;
     }
 
+    /**
+     * Return the process ID of this process.
+     *
+     * @return the process ID, or -1 if the process was never executed.
+     */
+    public int getPID() {
+        return pid;
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
@@ -109,7 +173,7 @@ public class UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-        Machine.processor().setPageTable(pageTable);
+        Machine.processor().setPageTable(pageTable.getProcessorPageTable());
     }
 
     /**
@@ -129,13 +193,39 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
         Lib.assertTrue(maxLength >= 0);
 
-        byte[] bytes = new byte[maxLength + 1];
+        byte[] memory = Machine.processor().getMemory();
 
-        int bytesRead = readVirtualMemory(vaddr, bytes);
+        // find the terminator one page at a time, so only the string itself
+        // is ever copied
+        int length = 0;
+        while (length <= maxLength) {
+            int vpn = Processor.pageFromAddress(vaddr + length);
+            int pageOffset = Processor.offsetFromAddress(vaddr + length);
+            int ppn = pinVirtualPage(vpn, false);
+            if (ppn == -1)
+                return null;
 
-        for (int length = 0; length < bytesRead; length++) {
-            if (bytes[length] == 0)
-                return new String(bytes, 0, length);
+            int paddr = Processor.makeAddress(ppn, pageOffset);
+            int n = Math.min(maxLength + 1 - length, pageSize - pageOffset);
+            for (int i = 0; i < n; i++) {
+                if (memory[paddr + i] == 0) {
+                    String string;
+                    if (length == 0) {
+                        string = new String(memory, paddr, i);
+                        unpinVirtualPage(vpn);
+                    }
+                    else {
+                        unpinVirtualPage(vpn);
+                        byte[] bytes = new byte[length + i];
+                        if (readVirtualMemory(vaddr, bytes) < bytes.length)
+                            return null;
+                        string = new String(bytes);
+                    }
+                    return string;
+                }
+            }
+            unpinVirtualPage(vpn);
+            length += n;
         }
 
         return null;
@@ -171,20 +261,79 @@ public class UserProcess {
                                  int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
-
-        // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
-            return 0;
+        return transferVirtualMemory(vaddr, length, false, new MemoryTransfer() {
+            int transfer(byte[] memory, int paddr, int done, int n) {
+                System.arraycopy(memory, paddr, data, offset + done, n);
+                return n;
+            }
+        });
+    }
 
-        int amount = Math.min(length, memory.length - vaddr);
-        System.arraycopy(memory, vaddr, data, offset, amount);
+    /**
+     * Transfer data from this process's virtual memory directly to the
+     * current position of the specified file, without copying it through an
+     * intermediate array. Stops early if the file accepts fewer bytes than it
+     * was given.
+     *
+     * @param vaddr  the first byte of virtual memory to read.
+     * @param file   the file to write to.
+     * @param length the number of bytes to transfer.
+     * @return the number of bytes successfully transferred, or -1 if the
+     * file failed before accepting any data.
+     */
+    public int readVirtualMemory(int vaddr, final OpenFile file, int length) {
+        Lib.assertTrue(length >= 0);
 
-        return amount;
+        return transferVirtualMemory(vaddr, length, false, new MemoryTransfer() {
+            int transfer(byte[] memory, int paddr, int done, int n) {
+                return file.write(memory, paddr, n);
+            }
+        });
     }
 
     private boolean validVirtualAddress(int vaddr) {
-        return vaddr >= 0 && vaddr < Machine.processor().getMemory().length;
+        return vaddr >= 0 && vaddr < pageTable.getNumPages() * pageSize;
+    }
+
+    /**
+     * Find the physical page backing the specified virtual page, so that the
+     * kernel can access it directly. Marks the page as used, and also as
+     * dirty if it is about to be written. Every successful call must be
+     * followed by a call to <tt>unpinVirtualPage()</tt> once the kernel is
+     * done with the page. The I/O ring's thread pins pages while the process
+     * runs, and loading a page can sleep, so the page is loaded or copied
+     * while holding <tt>pageLock</tt>, and checked again once it is held.
+     *
+     * @param vpn     the virtual page to access.
+     * @param writing <tt>true</tt> if the kernel is going to write the page.
+     * @return the physical page number, or -1 if the page is not mapped, or
+     * is read-only and <tt>writing</tt> is <tt>true</tt>.
+     */
+    protected int pinVirtualPage(int vpn, boolean writing) {
+        if (vpn < 0 || vpn >= pageTable.getNumPages())
+            return -1;
+
+        pageLock.acquire();
+
+        int ppn = -1;
+        if ((pageTable.isValid(vpn) || loadPage(vpn))
+                && (!writing || !pageTable.isReadOnly(vpn) || copyPage(vpn))) {
+            pageTable.setUsed(vpn, true);
+            if (writing)
+                pageTable.setDirty(vpn, true);
+            ppn = pageTable.getPPN(vpn);
+        }
+
+        pageLock.release();
+        return ppn;
+    }
+
+    /**
+     * Release a page pinned by <tt>pinVirtualPage()</tt>.
+     *
+     * @param vpn the virtual page the kernel is done with.
+     */
+    protected void unpinVirtualPage(int vpn) {
     }
 
     /**
@@ -218,18 +367,106 @@ public class UserProcess {
                                   int length) {
         Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
+        return transferVirtualMemory(vaddr, length, true, new MemoryTransfer() {
+            int transfer(byte[] memory, int paddr, int done, int n) {
+                System.arraycopy(data, offset + done, memory, paddr, n);
+                return n;
+            }
+        });
+    }
+
+    /**
+     * Transfer data from the current position of the specified file directly
+     * to this process's virtual memory, without copying it through an
+     * intermediate array. Stops early at the end of the file, or if the file
+     * returns fewer bytes than were asked for.
+     *
+     * @param vaddr  the first byte of virtual memory to write.
+     * @param file   the file to read from.
+     * @param length the number of bytes to transfer.
+     * @return the number of bytes successfully transferred, or -1 if the
+     * file failed before returning any data.
+     */
+    public int writeVirtualMemory(int vaddr, final OpenFile file, int length) {
+        Lib.assertTrue(length >= 0);
+
+        return transferVirtualMemory(vaddr, length, true, new MemoryTransfer() {
+            int transfer(byte[] memory, int paddr, int done, int n) {
+                return file.read(memory, paddr, n);
+            }
+        });
+    }
+
+    /**
+     * Translate the virtual address range starting at <tt>vaddr</tt> one page
+     * at a time, and hand each run of pages that is also contiguous in
+     * physical memory to <tt>transfer</tt> in a single call. The pages of a
+     * run stay pinned while it is transferred.
+     *
+     * @param vaddr    the first byte of virtual memory to transfer.
+     * @param length   the number of bytes to transfer.
+     * @param writing  <tt>true</tt> if the transfer writes virtual memory.
+     * @param transfer copies one physical run.
+     * @return the number of bytes transferred, or -1 if the first run
+     * failed.
+     */
+    private int transferVirtualMemory(int vaddr, int length, boolean writing,
+                                      MemoryTransfer transfer) {
         byte[] memory = Machine.processor().getMemory();
 
-        // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
-            return 0;
+        int amount = 0;
+        while (amount < length) {
+            int vpn = Processor.pageFromAddress(vaddr + amount);
+            int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+            int ppn = pinVirtualPage(vpn, writing);
+            if (ppn == -1)
+                break;
+
+            // extend the run while the next virtual page is also the next
+            // physical page
+            int lastVPN = vpn;
+            int n = Math.min(length - amount, pageSize - pageOffset);
+            while (amount + n < length) {
+                int nextPPN = pinVirtualPage(lastVPN + 1, writing);
+                if (nextPPN != ppn + (lastVPN + 1 - vpn)) {
+                    if (nextPPN != -1)
+                        unpinVirtualPage(lastVPN + 1);
+                    break;
+                }
+                lastVPN++;
+                n += Math.min(length - amount - n, pageSize);
+            }
+
+            int transferred = transfer.transfer(memory,
+                    Processor.makeAddress(ppn, pageOffset), amount, n);
+            for (int i = vpn; i <= lastVPN; i++)
+                unpinVirtualPage(i);
 
-        int amount = Math.min(length, memory.length - vaddr);
-        System.arraycopy(data, offset, memory, vaddr, amount);
+            if (transferred < 0)
+                return (amount == 0) ? -1 : amount;
+            amount += transferred;
+            if (transferred < n)
+                break;
+        }
 
         return amount;
     }
 
+    /**
+     * Copies one physically contiguous run for
+     * <tt>transferVirtualMemory()</tt>.
+     */
+    private static abstract class MemoryTransfer {
+        /**
+         * @param memory the machine's main memory.
+         * @param paddr  the first physical address of the run.
+         * @param done   the number of bytes already transferred.
+         * @param n      the length of the run.
+         * @return the number of bytes transferred, or -1 on error.
+         */
+        abstract int transfer(byte[] memory, int paddr, int done, int n);
+    }
+
 
     /**
      * Load the executable with the specified name into this process, and
@@ -244,31 +481,14 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
         Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-        OpenFile executable = fileSystem.open(name, false);
+        executable = UserKernel.executables.open(name);
         if (executable == null) {
             Lib.debug(dbgProcess, "\topen failed");
             return false;
         }
 
-        try {
-            coff = new Coff(executable);
-        } catch (EOFException e) {
-            executable.close();
-            Lib.debug(dbgProcess, "\tcoff load failed");
-            return false;
-        }
-
-        // make sure the sections are contiguous and start at page 0
-        numPages = 0;
-        for (int s = 0; s < coff.getNumSections(); s++) {
-            CoffSection section = coff.getSection(s);
-            if (section.getFirstVPN() != numPages) {
-				coff.close();
-                Lib.debug(dbgProcess, "\tfragmented executable");
-                return false;
-            }
-            numPages += section.getLength();
-        }
+        // the cache makes sure the sections are contiguous and start at page 0
+        numPages = executable.getNumPages();
 
         // make sure the argv array will fit in one page
         byte[][] argv = new byte[args.length][];
@@ -279,13 +499,13 @@ public class UserProcess {
             argsSize += 4 + argv[i].length + 1;
         }
         if (argsSize > pageSize) {
-            coff.close();
+            UserKernel.executables.release(executable);
             Lib.debug(dbgProcess, "\targuments too long");
             return false;
         }
 
         // program counter initially points at the program entry point
-        initialPC = coff.getEntryPoint();
+        initialPC = executable.getEntryPoint();
 
         // next comes the stack; stack pointer initially points to top of it
         numPages += stackPages;
@@ -294,8 +514,13 @@ public class UserProcess {
         // and finally reserve 1 page for arguments
         numPages++;
 
-        if (!loadSections())
+        // the heap starts out empty, just above the arguments
+        heapBreak = numPages * pageSize;
+
+        if (!loadSections()) {
+            UserKernel.executables.release(executable);
             return false;
+        }
 
         // store arguments in last page
         int entryOffset = (numPages - 1) * pageSize;
@@ -319,34 +544,174 @@ public class UserProcess {
     }
 
     /**
-     * Allocates memory for this process, and loads the COFF sections into
-     * memory. If this returns successfully, the process will definitely be
-     * run (this is the last step in process initialization that can fail).
+     * Allocates memory for this process, and prepares to load the COFF
+     * sections into memory. Enough physical pages for the whole program are
+     * reserved here, but each one is only allocated and filled by
+     * <tt>loadPage()</tt> when the page is first touched. If this returns
+     * successfully, the process will definitely be run (this is the last
+     * step in process initialization that can fail).
      *
      * @return <tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-        if (numPages > Machine.processor().getNumPhysPages()) {
-            coff.close();
+        if (!UserKernel.reserveFrames(numPages)) {
             Lib.debug(dbgProcess, "\tinsufficient physical memory");
             return false;
         }
+        reservedFrames = true;
+
+        pageTable = new PageTable(numPages);
+        for (int vpn = 0; vpn < executable.getNumPages(); vpn++)
+            pageTable.setReadOnly(vpn, executable.isReadOnly(vpn));
+
+        return true;
+    }
+
+    /**
+     * Test whether a page starts out as zeros: it belongs to the stack, the
+     * argument page, the heap or an uninitialized section such as the bss.
+     *
+     * @param vpn the virtual page.
+     */
+    protected boolean isZeroFillPage(int vpn) {
+        return vpn < getHeapEndVPN()
+                && (vpn >= executable.getNumPages() || !executable.isInitialized(vpn));
+    }
+
+    /**
+     * Test whether a virtual page can be loaded: it belongs to the program,
+     * its stack, its arguments or its heap, or to a file mapped by
+     * <tt>mmap()</tt>.
+     *
+     * @param vpn the virtual page.
+     */
+    protected boolean isValidPage(int vpn) {
+        return vpn < getHeapEndVPN() || getMappedFile(vpn) != null;
+    }
+
+    /**
+     * Return the first page above the heap. The program, stack, argument
+     * and heap pages are all below it.
+     */
+    protected int getHeapEndVPN() {
+        return (int) (((long) heapBreak + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * Return the file mapped at a virtual page.
+     *
+     * @param vpn the virtual page.
+     * @return the mapped file, or <tt>null</tt> if the page is not part of a
+     * mapped file.
+     */
+    protected MappedFile getMappedFile(int vpn) {
+        for (MappedFile mappedFile : mappedFiles.values()) {
+            if (vpn >= mappedFile.firstVPN && vpn - mappedFile.firstVPN < mappedFile.numPages)
+                return mappedFile;
+        }
+        return null;
+    }
+
+    /**
+     * Back a virtual page with a physical page the first time it is touched.
+     * Read-only pages of the program map the page shared by every process
+     * running it, and other pages of the program get a private copy, both
+     * through <tt>UserKernel.executables</tt>. Pages that start out as zeros
+     * map the kernel's zero page, and only get a physical page of their own
+     * when they are first written. Pages of a mapped file are read from the
+     * file. The caller must hold <tt>pageLock</tt>.
+     *
+     * @param vpn the virtual page to load.
+     * @return <tt>true</tt> if the page was loaded.
+     */
+    protected boolean loadPage(int vpn) {
+        Lib.assertTrue(!pageTable.isValid(vpn));
+
+        if (!isValidPage(vpn))
+            return false;
+
+        MappedFile mappedFile = getMappedFile(vpn);
+        if (mappedFile != null) {
+            // the reservation made by mmap() covers the page
+            int ppn = UserKernel.allocateFrame();
+            Lib.assertTrue(ppn != -1);
+            if (!mappedFile.readPage(vpn, ppn)) {
+                UserKernel.freeFrame(ppn);
+                return false;
+            }
+
+            pageTable.map(vpn, ppn);
+            return true;
+        }
+
+        boolean inProgram = vpn < executable.getNumPages();
+        int ppn = -1;
+        if (isZeroFillPage(vpn)) {
+            ppn = UserKernel.mapZeroFrame();
+            if (ppn != -1 && !pageTable.isReadOnly(vpn))
+                pageTable.setCopyOnWrite(vpn, true);
+        }
+        else if (inProgram && executable.isReadOnly(vpn)) {
+            ppn = UserKernel.executables.mapSharedPage(executable, vpn);
+        }
+
+        if (ppn == -1) {
+            ppn = UserKernel.allocateFrame();
+            if (ppn == -1) {
+                Lib.debug(dbgProcess, "\tout of physical memory");
+                return false;
+            }
+
+            if (inProgram) {
+                if (!UserKernel.executables.loadPage(executable, vpn, ppn)) {
+                    UserKernel.freeFrame(ppn);
+                    return false;
+                }
+            }
+            else {
+                byte[] memory = Machine.processor().getMemory();
+                Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+            }
+        }
 
-        // load sections
-        for (int s = 0; s < coff.getNumSections(); s++) {
-            CoffSection section = coff.getSection(s);
+        pageTable.map(vpn, ppn);
+        return true;
+    }
 
-            Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-                    + " section (" + section.getLength() + " pages)");
+    /**
+     * Give this process its own copy of the zero page or of a page it shares
+     * with a forked process, and make the page writable. If no other process
+     * still maps the physical page, it is just made writable. The caller
+     * must hold <tt>pageLock</tt>.
+     *
+     * @param vpn the virtual page that is about to be written.
+     * @return <tt>true</tt> if successful, or <tt>false</tt> if the page is
+     * not copy-on-write.
+     */
+    private boolean copyPage(int vpn) {
+        if (!pageTable.isCopyOnWrite(vpn))
+            return false;
 
-            for (int i = 0; i < section.getLength(); i++) {
-                int vpn = section.getFirstVPN() + i;
+        int sharedPPN = pageTable.getPPN(vpn);
+        if (UserKernel.isZeroFrame(sharedPPN)
+                || UserKernel.getFrameRefCount(sharedPPN) > 1) {
+            // the reservation of this process covers the copy
+            int ppn = UserKernel.allocateFrame();
+            Lib.assertTrue(ppn != -1);
 
-                // for now, just assume virtual addresses=physical addresses
-                section.loadPage(i, vpn);
+            byte[] memory = Machine.processor().getMemory();
+            if (UserKernel.isZeroFrame(sharedPPN)) {
+                Arrays.fill(memory, ppn * pageSize, (ppn + 1) * pageSize, (byte) 0);
+            }
+            else {
+                System.arraycopy(memory, sharedPPN * pageSize, memory, ppn * pageSize, pageSize);
+                numPagesCopied++;
             }
+            UserKernel.freeFrame(sharedPPN);
+            pageTable.map(vpn, ppn);
         }
 
+        pageTable.setCopyOnWrite(vpn, false);
         return true;
     }
 
@@ -354,6 +719,65 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+        countZeroFillPages();
+        for (int vpn = 0; vpn < pageTable.getNumPages(); vpn++) {
+            if (pageTable.isValid(vpn)) {
+                UserKernel.freeFrame(pageTable.getPPN(vpn));
+                pageTable.unmap(vpn);
+            }
+        }
+        if (reservedFrames) {
+            UserKernel.unreserveFrames(getHeapEndVPN());
+            reservedFrames = false;
+        }
+    }
+
+    /**
+     * Record what became of each page of this process that started out as
+     * zeros, with <tt>UserKernel.countZeroFillPage()</tt>. Called when the
+     * process frees its pages, and when the machine halts for processes that
+     * are still running; the pages are only counted the first time.
+     */
+    protected void countZeroFillPages() {
+        if (zeroFillPagesCounted || executable == null) {
+            return;
+        }
+        zeroFillPagesCounted = true;
+
+        for (int vpn = 0; vpn < pageTable.getNumPages(); vpn++) {
+            if (isZeroFillPage(vpn)) {
+                countZeroFillPage(vpn);
+            }
+        }
+    }
+
+    /**
+     * Record what became of a page that started out as zeros: it was
+     * touched if it is mapped, and written if it is no longer the zero page.
+     *
+     * @param vpn the virtual page.
+     */
+    protected void countZeroFillPage(int vpn) {
+        boolean valid = pageTable.isValid(vpn);
+        UserKernel.countZeroFillPage(valid,
+                valid && !UserKernel.isZeroFrame(pageTable.getPPN(vpn)));
+    }
+
+    /**
+     * Discard a page that is no longer part of the address space, freeing
+     * its physical page. It reads as zeros if it is part of the address
+     * space again later.
+     *
+     * @param vpn the virtual page to free.
+     */
+    protected void freePage(int vpn) {
+        pageLock.acquire();
+
+        if (pageTable.isValid(vpn))
+            UserKernel.freeFrame(pageTable.getPPN(vpn));
+        pageTable.clear(vpn);
+
+        pageLock.release();
     }
 
     /**
@@ -366,6 +790,13 @@ public class UserProcess {
     public void initRegisters() {
         Processor processor = Machine.processor();
 
+        if (forkRegisters != null) {
+            for (int i = 0; i < Processor.numUserRegisters; i++)
+                processor.writeRegister(i, forkRegisters[i]);
+            forkRegisters = null;
+            return;
+        }
+
         // by default, everything's 0
         for (int i = 0; i < Processor.numUserRegisters; i++)
             processor.writeRegister(i, 0);
@@ -383,10 +814,16 @@ public class UserProcess {
      * Handle the halt() system call.
      */
     private int handleHalt() {
+        // only the first process may halt the machine
+        if(pid != 0) {
+            return -1;
+        }
 
-        Machine.halt();
+        // terminate the kernel rather than halting the machine directly, so
+        // that it can finish any I/O of its own first
+        Kernel.kernel.terminate();
 
-        Lib.assertNotReached("Machine.halt() did not halt machine!");
+        Lib.assertNotReached("Kernel.terminate() did not halt machine!");
         return 0;
     }
 
@@ -407,25 +844,39 @@ public class UserProcess {
 
 
         if(s_name != null) {
-            OpenFile file = fileSystem.open(s_name, createFile);
+            return openFile(s_name, createFile);
+        }
+        else {
+            return -1;
+        }
 
-            // if the file couldn't be opened
-            if(file == null) {
-                Lib.debug(dbgProcess, "file '" + s_name + "' could not be opened" );
-                return -1;
-            }
+    }
 
-            // verifies that the returned fileDescriptor is not referring to a stream
-            int fd = openFiles.add(file);
-            if(fd == -1) {
-                file.close();
-            }
-            return fd;
+    /**
+     * Open a file and give it a file descriptor.
+     *
+     * @param name       the name of the file.
+     * @param createFile <tt>true</tt> to create the file if it does not exist.
+     * @return the new file descriptor, or -1 if an error occurred
+     */
+    private int openFile(String name, boolean createFile) {
+        if(createFile) {
+            UserKernel.executables.invalidate(name);
         }
-        else {
+        OpenFile file = fileSystem.open(name, createFile);
+
+        // if the file couldn't be opened
+        if(file == null) {
+            Lib.debug(dbgProcess, "file '" + name + "' could not be opened" );
             return -1;
         }
 
+        // verifies that the returned fileDescriptor is not referring to a stream
+        int fd = openFiles.add(file);
+        if(fd == -1) {
+            file.close();
+        }
+        return fd;
     }
 
     private boolean validArguments(int[] args) {
@@ -455,85 +906,950 @@ public class UserProcess {
         return handleOpen(p_name, false);
     }
 
+    /**
+     * Read up to <i>size</i> bytes from a file into the guest buffer. The
+     * data is moved through <tt>ioBuffer</tt>, a page's worth at a time, so
+     * the kernel never allocates memory in proportion to <i>size</i>.
+     *
+     * @param fd       the file descriptor to read from.
+     * @param p_buffer a pointer to the guest buffer.
+     * @param size     the maximum number of bytes to read.
+     * @return the number of bytes read, which is smaller than <i>size</i> if
+     * the file has no more data right now, or -1 if an error occurred
+     */
     private int handleRead(int fd, int p_buffer, int size) {
-
-        if(!validArguments(new int[]{p_buffer, size}))
+        if(size > 0 && !validArguments(new int[]{p_buffer}))
             killAndFree(-1);
 
-        if(openFiles.get(fd) == null) {
+        OpenFileDescription description = openFiles.getDescription(fd);
+        if(description == null || size < 0 || mappedFiles.containsKey(fd)) {
             return -1;
         }
 
-        byte buf[] = new byte[size];
-        int numOfBytesRead = openFiles.get(fd).read(buf, 0, size);
+        return readFile(description, p_buffer, size, ioBuffer);
+    }
 
-        if(writeVirtualMemory(p_buffer, buf, 0, numOfBytesRead) < numOfBytesRead) {
-            return -1;
+    /**
+     * Read up to <i>size</i> bytes from an open file into the guest buffer,
+     * staging them in <i>buffer</i>, as much as it holds at a time. The
+     * description is locked throughout, so that the read moves the position
+     * it shares with other file descriptors atomically.
+     *
+     * @param description the open file to read from.
+     * @param p_buffer    a pointer to the guest buffer.
+     * @param size        the maximum number of bytes to read.
+     * @param buffer      a staging array.
+     * @return the number of bytes read into the guest buffer, or -1 if an
+     * error occurred
+     */
+    private int readFile(OpenFileDescription description, int p_buffer, int size, byte[] buffer) {
+        // pipes copy straight from their ring buffers, and have no position
+        if(description.file instanceof Pipe.End) {
+            return ((Pipe.End) description.file).read(this, p_buffer, size);
+        }
+
+        description.lock.acquire();
+
+        int total = 0;
+        while(total < size) {
+            int chunk = Math.min(size - total, buffer.length);
+            int numOfBytesRead = description.file.read(buffer, 0, chunk);
+            if(numOfBytesRead < 0) {
+                if(total == 0) {
+                    total = -1;
+                }
+                break;
+            }
+
+            int copied = writeVirtualMemory(p_buffer + total, buffer, 0, numOfBytesRead);
+            total += copied;
+            if(copied < numOfBytesRead) {
+                // the guest buffer ran out; give the rest back to the file,
+                // unless it has no position to move back (the console)
+                int position = description.file.tell();
+                if(position >= 0) {
+                    description.file.seek(position - (numOfBytesRead - copied));
+                }
+                if(total == 0) {
+                    total = -1;
+                }
+                break;
+            }
+
+            // the end of the file, or no more console input for now
+            if(numOfBytesRead < chunk) {
+                break;
+            }
         }
 
-        return numOfBytesRead;
+        description.lock.release();
+        return total;
     }
 
+    /**
+     * Write up to <i>size</i> bytes from the guest buffer to a file, through
+     * <tt>ioBuffer</tt>.
+     *
+     * @param fd       the file descriptor to write to.
+     * @param p_buffer a pointer to the guest buffer.
+     * @param size     the number of bytes to write.
+     * @return the number of bytes written, which is smaller than <i>size</i>
+     * if the file stopped accepting data, or -1 if an error occurred
+     */
     private int handleWrite(int fd, int p_buffer, int size) {
-        if(!validArguments(new int[]{p_buffer, size}))
+        if(size > 0 && !validArguments(new int[]{p_buffer}))
             killAndFree(-1);
 
-        byte buf[] = new byte[size];
-        if(readVirtualMemory(p_buffer, buf) < size) {
+        OpenFileDescription description = openFiles.getDescription(fd);
+        if(description == null || size < 0 || mappedFiles.containsKey(fd)) {
             return -1;
         }
 
-        if(openFiles.get(fd) == null || openFiles.get(fd).write(buf, 0, size) < size) {
-            return -1;
+        return writeFile(description, p_buffer, size, ioBuffer);
+    }
+
+    /**
+     * Write up to <i>size</i> bytes from the guest buffer to an open file,
+     * staging them in <i>buffer</i> as in <tt>readFile()</tt>, with the
+     * description locked throughout.
+     *
+     * @param description the open file to write to.
+     * @param p_buffer    a pointer to the guest buffer.
+     * @param size        the number of bytes to write.
+     * @param buffer      a staging array.
+     * @return the number of bytes written, or -1 if an error occurred
+     */
+    private int writeFile(OpenFileDescription description, int p_buffer, int size, byte[] buffer) {
+        if(description.file instanceof Pipe.End) {
+            return ((Pipe.End) description.file).write(this, p_buffer, size);
+        }
+
+        UserKernel.executables.invalidate(description.file.getName());
+        description.lock.acquire();
+
+        int total = 0;
+        while(total < size) {
+            int chunk = Math.min(size - total, buffer.length);
+            // write whatever could be copied before the guest buffer ran out
+            int copied = readVirtualMemory(p_buffer + total, buffer, 0, chunk);
+            int numOfBytesWritten = (copied > 0) ? description.file.write(buffer, 0, copied) : -1;
+            if(numOfBytesWritten < 0) {
+                if(total == 0) {
+                    total = -1;
+                }
+                break;
+            }
+            total += numOfBytesWritten;
+
+            if(numOfBytesWritten < chunk) {
+                break;
+            }
         }
 
-		return size;
+        description.lock.release();
+        return total;
     }
 
     private int handleClose(int fd) {
+        MappedFile mappedFile = mappedFiles.get(fd);
+        if(mappedFile != null) {
+            unmapFile(mappedFile);
+        }
 		return openFiles.remove(fd);
     }
 
-    private int handleUnlink(int p_name) {
-    	if(!validArguments(new int[] {p_name})) {
+    /**
+     * @param fd the file descriptor to duplicate.
+     * @return the lowest free file descriptor, now referring to the same open
+     * file as <i>fd</i>, or -1 if an error occurred
+     */
+    private int handleDup(int fd) {
+        return openFiles.dup(fd);
+    }
+
+    /**
+     * Make <i>newFD</i> refer to the same open file as <i>fd</i>, closing it
+     * first, and removing its map, if it is open.
+     *
+     * @param fd    the file descriptor to duplicate.
+     * @param newFD the file descriptor to make refer to it.
+     * @return <i>newFD</i>, or -1 if an error occurred
+     */
+    private int handleDup2(int fd, int newFD) {
+        if(openFiles.get(fd) == null) {
             return -1;
         }
+        if(fd == newFD) {
+            return newFD;
+        }
 
-        String s_name = readVirtualMemoryString(p_name,MAX_STRING_ARG_LENGTH-1);
-        if(s_name == null) return -1;
-        // if not successful
-        if(!fileSystem.remove(s_name)) return -1;
-		return 0;
+        if(openFiles.get(newFD) != null) {
+            handleClose(newFD);
+        }
+        return openFiles.dup2(fd, newFD);
     }
 
-    private void killAndFree(int status) {
-        Lib.debug(dbgProcess, "Killing the process and freeing allocated resources.");
-        openFiles.closeAll();
-        coff.close();
-        this.status = status;
-        UThread.finish();
-        Lib.assertNotReached();
+    /**
+     * Create a pipe, and store file descriptors for its read end and its
+     * write end in the two ints at <i>p_fds</i>. Data written to the write
+     * end is held in the kernel until it is read from the read end, and
+     * never goes through the file system.
+     *
+     * @param p_fds a pointer to an array of two ints.
+     * @return 0, or -1 if an error occurred
+     */
+    private int handlePipe(int p_fds) {
+        if(!validArguments(new int[]{p_fds}))
+            killAndFree(-1);
+
+        Pipe pipe = new Pipe();
+        Pipe.End readEnd = pipe.openForReading();
+        Pipe.End writeEnd = pipe.openForWriting();
+        int readFD = openFiles.add(readEnd);
+        int writeFD = (readFD == -1) ? -1 : openFiles.add(writeEnd);
+
+        byte[] fds = new byte[8];
+        Lib.bytesFromInt(fds, 0, readFD);
+        Lib.bytesFromInt(fds, 4, writeFD);
+        if(writeFD == -1 || writeVirtualMemory(p_fds, fds) < fds.length) {
+            // removing a file descriptor closes its end
+            if(readFD != -1) {
+                openFiles.remove(readFD);
+            }
+            else {
+                readEnd.close();
+            }
+            if(writeFD != -1) {
+                openFiles.remove(writeFD);
+            }
+            else {
+                writeEnd.close();
+            }
+            return -1;
+        }
+        return 0;
     }
 
     /**
-     * Handle a syscall exception. Called by <tt>handleException()</tt>. The
-     * <i>syscall</i> argument identifies which syscall the user executed:
+     * Copy up to <i>count</i> bytes from one open file to another, starting
+     * at the current position of each, without passing them through the
+     * process. The data is moved in chunks of up to <tt>copyChunkSize</tt>
+     * bytes, so copying a file takes one read and one write on the file
+     * system per chunk, rather than per buffer the process would use, and
+     * no syscalls beyond this one.
      *
-     * <table>
-     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
-     * <tr><td>0</td><td><tt>void halt();</tt></td></tr>
-     * <tr><td>1</td><td><tt>void exit(int status);</tt></td></tr>
-     * <tr><td>2</td><td><tt>int  exec(char *name, int argc, char **argv);
-     * 								</tt></td></tr>
-     * <tr><td>3</td><td><tt>int  join(int pid, int *status);</tt></td></tr>
-     * <tr><td>4</td><td><tt>int  creat(char *name);</tt></td></tr>
-     * <tr><td>5</td><td><tt>int  open(char *name);</tt></td></tr>
-     * <tr><td>6</td><td><tt>int  read(int fd, char *buffer, int size);
+     * @param outFD the file descriptor to write to.
+     * @param inFD  the file descriptor to read from.
+     * @param count the maximum number of bytes to copy.
+     * @return the number of bytes copied, which is smaller than <i>count</i>
+     * if <i>inFD</i> has no more data right now or <i>outFD</i> stopped
+     * accepting data, or -1 if an error occurred
+     */
+    private int handleSendfile(int outFD, int inFD, int count) {
+        OpenFileDescription in = openFiles.getDescription(inFD);
+        OpenFileDescription out = openFiles.getDescription(outFD);
+        if(in == null || out == null || count < 0
+                || mappedFiles.containsKey(inFD) || mappedFiles.containsKey(outFD)) {
+            return -1;
+        }
+
+        byte[] copyBuffer = getCopyBuffer();
+        if(!(out.file instanceof Pipe.End)) {
+            UserKernel.executables.invalidate(out.file.getName());
+        }
+
+        // each file is only locked while it is used, so that two processes
+        // copying between the same files in opposite directions cannot
+        // deadlock
+        int total = 0;
+        while(total < count) {
+            int chunk = Math.min(count - total, copyBuffer.length);
+            in.lock.acquire();
+            int numOfBytesRead = in.file.read(copyBuffer, 0, chunk);
+            in.lock.release();
+            if(numOfBytesRead <= 0) {
+                if(numOfBytesRead < 0 && total == 0) {
+                    total = -1;
+                }
+                break;
+            }
+
+            out.lock.acquire();
+            int numOfBytesWritten = out.file.write(copyBuffer, 0, numOfBytesRead);
+            out.lock.release();
+            if(numOfBytesWritten < 0) {
+                if(total == 0) {
+                    total = -1;
+                }
+                break;
+            }
+            total += numOfBytesWritten;
+
+            if(numOfBytesWritten < numOfBytesRead || numOfBytesRead < chunk) {
+                break;
+            }
+        }
+
+        return total;
+    }
+
+    private byte[] getCopyBuffer() {
+        if(copyBuffer == null) {
+            copyBuffer = new byte[copyChunkSize];
+        }
+        return copyBuffer;
+    }
+
+    /**
+     * Read from a file into the <i>count</i> buffers described by the iovec
+     * array at <i>p_iov</i>, filling each one before the next. The array is
+     * read once, and every buffer is checked before the file is touched.
+     * The file is then read with one operation per <tt>copyChunkSize</tt>
+     * bytes, however many buffers that spans, and the data is scattered
+     * into the buffers.
+     *
+     * @param fd    the file descriptor to read from.
+     * @param p_iov a pointer to an array of <i>count</i> iovecs.
+     * @param count the number of buffers.
+     * @return the number of bytes read, which is smaller than the total
+     * length of the buffers if the file has no more data right now, or -1
+     * if an error occurred
+     */
+    private int handleReadv(int fd, int p_iov, int count) {
+        if(count > 0 && !validArguments(new int[]{p_iov}))
+            killAndFree(-1);
+
+        OpenFileDescription description = openFiles.getDescription(fd);
+        IOVector vector = readIOVector(p_iov, count, true);
+        if(description == null || vector == null || mappedFiles.containsKey(fd)) {
+            return -1;
+        }
+
+        byte[] buffer = getCopyBuffer();
+        description.lock.acquire();
+
+        int total = 0;
+        while(total < vector.length) {
+            int chunk = Math.min(vector.length - total, buffer.length);
+            int numOfBytesRead = description.file.read(buffer, 0, chunk);
+            if(numOfBytesRead < 0) {
+                if(total == 0) {
+                    total = -1;
+                }
+                break;
+            }
+
+            if(vector.transfer(buffer, numOfBytesRead, true) < numOfBytesRead) {
+                if(total == 0) {
+                    total = -1;
+                }
+                break;
+            }
+            total += numOfBytesRead;
+
+            if(numOfBytesRead < chunk) {
+                break;
+            }
+        }
+
+        description.lock.release();
+        return total;
+    }
+
+    /**
+     * Write the <i>count</i> buffers described by the iovec array at
+     * <i>p_iov</i> to a file, in order, as if they were one buffer. Like
+     * <tt>readv()</tt>, the buffers are gathered so that the file is written
+     * with one operation per <tt>copyChunkSize</tt> bytes.
+     *
+     * @param fd    the file descriptor to write to.
+     * @param p_iov a pointer to an array of <i>count</i> iovecs.
+     * @param count the number of buffers.
+     * @return the number of bytes written, which is smaller than the total
+     * length of the buffers if the file stopped accepting data, or -1 if an
+     * error occurred
+     */
+    private int handleWritev(int fd, int p_iov, int count) {
+        if(count > 0 && !validArguments(new int[]{p_iov}))
+            killAndFree(-1);
+
+        OpenFileDescription description = openFiles.getDescription(fd);
+        IOVector vector = readIOVector(p_iov, count, false);
+        if(description == null || vector == null || mappedFiles.containsKey(fd)) {
+            return -1;
+        }
+
+        if(!(description.file instanceof Pipe.End)) {
+            UserKernel.executables.invalidate(description.file.getName());
+        }
+        byte[] buffer = getCopyBuffer();
+        description.lock.acquire();
+
+        int total = 0;
+        while(total < vector.length) {
+            int chunk = Math.min(vector.length - total, buffer.length);
+            if(vector.transfer(buffer, chunk, false) < chunk) {
+                if(total == 0) {
+                    total = -1;
+                }
+                break;
+            }
+
+            int numOfBytesWritten = description.file.write(buffer, 0, chunk);
+            if(numOfBytesWritten < 0) {
+                if(total == 0) {
+                    total = -1;
+                }
+                break;
+            }
+            total += numOfBytesWritten;
+
+            if(numOfBytesWritten < chunk) {
+                break;
+            }
+        }
+
+        description.lock.release();
+        return total;
+    }
+
+    /**
+     * Read an iovec array from guest memory and check that every page of
+     * every buffer belongs to the address space, and can be written if
+     * <i>writing</i> is <tt>true</tt>.
+     *
+     * @param p_iov   a pointer to the array.
+     * @param count   the number of iovecs in it.
+     * @param writing <tt>true</tt> if the buffers are going to be written.
+     * @return the buffers, or <tt>null</tt> if the array could not be read,
+     * is too long, or describes a buffer that cannot be used
+     */
+    private IOVector readIOVector(int p_iov, int count, boolean writing) {
+        if(count < 0 || count > maxIOVectorLength) {
+            return null;
+        }
+
+        byte[] iov = new byte[count * ioVectorEntrySize];
+        if(readVirtualMemory(p_iov, iov) < iov.length) {
+            return null;
+        }
+
+        int[] bases = new int[count];
+        int[] lengths = new int[count];
+        long length = 0;
+        for(int i = 0; i < count; i++) {
+            bases[i] = Lib.bytesToInt(iov, i * ioVectorEntrySize);
+            lengths[i] = Lib.bytesToInt(iov, i * ioVectorEntrySize + 4);
+            if(lengths[i] < 0) {
+                return null;
+            }
+
+            if(lengths[i] > 0) {
+                if(bases[i] < 0
+                        || (long) bases[i] + lengths[i] > (long) pageTable.getNumPages() * pageSize) {
+                    return null;
+                }
+                int firstVPN = Processor.pageFromAddress(bases[i]);
+                int lastVPN = Processor.pageFromAddress(bases[i] + lengths[i] - 1);
+                for(int vpn = firstVPN; vpn <= lastVPN; vpn++) {
+                    if(!isValidPage(vpn) || (writing && vpn < executable.getNumPages()
+                            && executable.isReadOnly(vpn))) {
+                        return null;
+                    }
+                }
+            }
+
+            length += lengths[i];
+            if(length > Integer.MAX_VALUE) {
+                return null;
+            }
+        }
+
+        return new IOVector(bases, lengths, (int) length);
+    }
+
+    private int handleUnlink(int p_name) {
+    	if(!validArguments(new int[] {p_name})) {
+            return -1;
+        }
+
+        String s_name = readVirtualMemoryString(p_name,MAX_STRING_ARG_LENGTH-1);
+        if(s_name == null) return -1;
+        // if not successful
+        UserKernel.executables.invalidate(s_name);
+        if(!fileSystem.remove(s_name)) return -1;
+		return 0;
+    }
+
+    /**
+     * Map the file open as <i>fd</i> into the address space, starting at
+     * <i>address</i>. Nothing is read yet: each page is read from the file
+     * the first time it is touched, and dirty pages are written back when
+     * the file is unmapped. The file stays the length it was. While it is
+     * mapped, <tt>read()</tt> and <tt>write()</tt> on <i>fd</i> fail. The
+     * whole file must fit in the <tt>maxMapPages</tt> pages above the heap.
+     *
+     * @param fd      the file descriptor of a non-empty file to map.
+     * @param address a page-aligned address above the heap, where no other
+     *                file is mapped.
+     * @return the length of the file, or -1 if an error occurred
+     */
+    private int handleMmap(int fd, int address) {
+        OpenFile file = openFiles.get(fd);
+        if(file == null || mappedFiles.containsKey(fd)
+                || address <= 0 || Processor.offsetFromAddress(address) != 0) {
+            return -1;
+        }
+
+        // an empty file would have no pages for munmap() to find it by
+        int length = file.length();
+        if(length <= 0) {
+            return -1;
+        }
+
+        int firstVPN = Processor.pageFromAddress(address);
+        MappedFile mappedFile = new MappedFile(fd, file, firstVPN, length);
+        int endVPN = firstVPN + mappedFile.numPages;
+        int heapEndVPN = getHeapEndVPN();
+        if(firstVPN < heapEndVPN
+                || endVPN - heapEndVPN > Math.min(maxMapPages, maxNumPages - heapEndVPN)) {
+            return -1;
+        }
+        for(int vpn = firstVPN; vpn < endVPN; vpn++) {
+            if(getMappedFile(vpn) != null) {
+                return -1;
+            }
+        }
+
+        // like the rest of the address space, the pages are reserved up
+        // front if this process works with reservations
+        if(reservedFrames && !UserKernel.reserveFrames(mappedFile.numPages)) {
+            Lib.debug(dbgProcess, "\tinsufficient physical memory");
+            return -1;
+        }
+
+        if(endVPN > pageTable.getNumPages()) {
+            growPageTable(endVPN);
+        }
+        mappedFiles.put(fd, mappedFile);
+
+        // the file may be changed without going through write()
+        UserKernel.executables.invalidate(file.getName());
+        return length;
+    }
+
+    /**
+     * Unmap the file mapped at <i>address</i> by <tt>mmap()</tt>, writing
+     * its dirty pages back. The file descriptor stays open.
+     *
+     * @param address the address the file was mapped at.
+     * @return 0 on success, or -1 if no file is mapped there or a page could
+     * not be written back
+     */
+    private int handleMunmap(int address) {
+        MappedFile mappedFile = getMappedFile(Processor.pageFromAddress(address));
+        if(mappedFile == null || address != mappedFile.firstVPN * pageSize) {
+            return -1;
+        }
+
+        return unmapFile(mappedFile) ? 0 : -1;
+    }
+
+    /**
+     * Remove a mapped file from the address space, writing its dirty pages
+     * back, and return the physical pages reserved for it.
+     *
+     * @param mappedFile the file to unmap.
+     * @return <tt>true</tt> if every dirty page was written back.
+     */
+    private boolean unmapFile(MappedFile mappedFile) {
+        boolean written = true;
+        for(int vpn = mappedFile.firstVPN; vpn < mappedFile.firstVPN + mappedFile.numPages; vpn++) {
+            written &= unmapFilePage(mappedFile, vpn);
+        }
+
+        if(reservedFrames) {
+            UserKernel.unreserveFrames(mappedFile.numPages);
+        }
+        mappedFiles.remove(mappedFile.fd);
+        return written;
+    }
+
+    /**
+     * Free the physical page backing a page of a mapped file, if it is
+     * resident, writing it back to the file first if it is dirty.
+     *
+     * @param mappedFile the file being unmapped.
+     * @param vpn        one of its pages.
+     * @return <tt>true</tt> if successful, or <tt>false</tt> if the page
+     * could not be written back.
+     */
+    protected boolean unmapFilePage(MappedFile mappedFile, int vpn) {
+        pageLock.acquire();
+
+        boolean written = true;
+        if(pageTable.isValid(vpn)) {
+            int ppn = pageTable.getPPN(vpn);
+            written = !pageTable.isDirty(vpn) || mappedFile.writePage(vpn, ppn);
+            UserKernel.freeFrame(ppn);
+            pageTable.clear(vpn);
+        }
+
+        pageLock.release();
+        return written;
+    }
+
+    /**
+     * Extend the page table to cover <i>length</i> pages, so that a file can
+     * be mapped above the current end of the address space. The new pages
+     * are invalid.
+     *
+     * @param length the new number of pages in the page table.
+     */
+    protected void growPageTable(int length) {
+        pageTable.setNumPages(length);
+    }
+
+    /**
+     * Move the end of the heap, which starts just above the argument page
+     * and is empty when the program starts. New heap pages stay invalid
+     * until they are first touched, and are then zero-filled like the stack.
+     * Pages the heap no longer covers are freed.
+     *
+     * @param increment the number of bytes to add to the heap, or to remove
+     *                  from it if negative.
+     * @return the previous end of the heap, or -1 if the heap cannot end at
+     * the new address
+     */
+    private int handleSbrk(int increment) {
+        long newBreak = (long) heapBreak + increment;
+        if(newBreak < numPages * pageSize || newBreak > Integer.MAX_VALUE) {
+            return -1;
+        }
+
+        int oldBreak = heapBreak;
+        int oldEndVPN = getHeapEndVPN();
+        int newEndVPN = (int) ((newBreak + pageSize - 1) / pageSize);
+        if(newEndVPN > oldEndVPN) {
+            for(int vpn = oldEndVPN; vpn < newEndVPN; vpn++) {
+                if(getMappedFile(vpn) != null) {
+                    return -1;
+                }
+            }
+            if(reservedFrames && !UserKernel.reserveFrames(newEndVPN - oldEndVPN)) {
+                Lib.debug(dbgProcess, "\tinsufficient physical memory");
+                return -1;
+            }
+            if(newEndVPN > pageTable.getNumPages()) {
+                growPageTable(newEndVPN);
+            }
+        }
+        else {
+            for(int vpn = newEndVPN; vpn < oldEndVPN; vpn++) {
+                freePage(vpn);
+            }
+            if(reservedFrames) {
+                UserKernel.unreserveFrames(oldEndVPN - newEndVPN);
+            }
+        }
+
+        heapBreak = (int) newBreak;
+        return oldBreak;
+    }
+
+    /**
+     * Hand the requests a program queued in its submission ring to the
+     * kernel's I/O thread for this process, and wait until at least
+     * <i>minComplete</i> of them have completed, or the thread can take no
+     * more requests. A process has a single ring, the one passed to its
+     * first <tt>submit()</tt>; the thread is started then.
+     *
+     * @param p_ring      a pointer to the guest's <tt>struct ioRing</tt>.
+     * @param minComplete the number of completions to wait for.
+     * @return the number of completions waiting in the completion ring, or
+     * -1 if the ring is not this process's ring or cannot be read
+     */
+    private int handleSubmit(int p_ring, int minComplete) {
+        if(ioRing == null) {
+            if(!validArguments(new int[]{p_ring})) {
+                return -1;
+            }
+            ioRing = new IORing(p_ring);
+        }
+        else if(p_ring != ioRing.address) {
+            return -1;
+        }
+
+        return ioRing.submit(minComplete);
+    }
+
+    /**
+     * Start a child process running the specified program.
+     *
+     * @param p_name a pointer to the name of the executable, which must end
+     *               in <tt>.coff</tt>
+     * @param argc   the number of arguments to pass to the child
+     * @param p_argv a pointer to an array of <i>argc</i> string pointers
+     * @return the process ID of the child, or -1 if an error occurred
+     */
+    private int handleExec(int p_name, int argc, int p_argv) {
+        // all of the arguments have to fit in the child's argument page
+        if(argc < 0 || argc > pageSize / 5) {
+            return -1;
+        }
+
+        String name = readVirtualMemoryString(p_name, MAX_STRING_ARG_LENGTH-1);
+        if(name == null || !name.endsWith(".coff")) {
+            return -1;
+        }
+
+        String[] args = new String[argc];
+        byte[] pointer = new byte[4];
+        for(int i = 0; i < argc; i++) {
+            if(readVirtualMemory(p_argv + i*4, pointer) < 4) {
+                return -1;
+            }
+            args[i] = readVirtualMemoryString(Lib.bytesToInt(pointer, 0), MAX_STRING_ARG_LENGTH-1);
+            if(args[i] == null) {
+                return -1;
+            }
+        }
+
+        UserProcess child = newUserProcess();
+        child.inheritFiles(this);
+        if(!child.execute(name, args)) {
+            child.openFiles.closeAll();
+            return -1;
+        }
+
+        children.put(child.pid, child);
+        return child.pid;
+    }
+
+    /**
+     * Give this new process the file descriptors of its parent, referring to
+     * the same open files, instead of its own console streams.
+     *
+     * @param parent the process starting this one.
+     */
+    private void inheritFiles(UserProcess parent) {
+        openFiles.closeAll();
+        openFiles = new OpenFiles(parent.openFiles);
+    }
+
+    /**
+     * Start a child process that is a copy of this one.
+     *
+     * @return the process ID of the child, or -1 if an error occurred. The
+     * child sees 0.
+     */
+    private int handleFork() {
+        UserProcess child = newUserProcess();
+        if(!child.forkFrom(this)) {
+            return -1;
+        }
+
+        children.put(child.pid, child);
+        return child.pid;
+    }
+
+    /**
+     * Make this new process a copy of a process that is calling
+     * <tt>fork()</tt>, and start running it just after the call, with
+     * <tt>fork()</tt> returning 0. The address space is set up by
+     * <tt>forkPages()</tt>. File descriptors are inherited, but mapped files
+     * are not.
+     *
+     * @param parent the process calling <tt>fork()</tt>; must be the
+     *               current process.
+     * @return <tt>true</tt> if the child was started.
+     */
+    protected boolean forkFrom(UserProcess parent) {
+        if (!forkPages(parent))
+            return false;
+
+        executable = parent.executable;
+        UserKernel.executables.retain(executable);
+        numPages = parent.numPages;
+        heapBreak = parent.heapBreak;
+        inheritFiles(parent);
+
+        // resume after the syscall instruction, with fork() returning 0
+        Processor processor = Machine.processor();
+        forkRegisters = new int[Processor.numUserRegisters];
+        for (int i = 0; i < Processor.numUserRegisters; i++)
+            forkRegisters[i] = processor.readRegister(i);
+        forkRegisters[Processor.regV0] = 0;
+        forkRegisters[Processor.regPC] = forkRegisters[Processor.regNextPC];
+        forkRegisters[Processor.regNextPC] += 4;
+
+        pid = UserKernel.addProcess(this);
+        new UThread(this).setName(executable.getName()).fork();
+        return true;
+    }
+
+    /**
+     * Give this new process the program and heap pages of a process calling
+     * <tt>fork()</tt>. The address space is not copied: every page the
+     * parent has loaded is mapped by both processes, and pages that either
+     * of them may write are made read-only in both, to be copied by
+     * <tt>copyPage()</tt> on the first write. As in <tt>loadSections()</tt>,
+     * enough physical pages for the whole program and its heap are reserved,
+     * so the copies never run out of memory.
+     *
+     * @param parent the process calling <tt>fork()</tt>.
+     * @return <tt>true</tt> if successful.
+     */
+    protected boolean forkPages(UserProcess parent) {
+        int heapEndVPN = parent.getHeapEndVPN();
+        if (!UserKernel.reserveFrames(heapEndVPN)) {
+            Lib.debug(dbgProcess, "\tinsufficient physical memory");
+            return false;
+        }
+        reservedFrames = true;
+
+        // the parent's I/O ring may be loading or copying its pages
+        parent.pageLock.acquire();
+
+        pageTable = new PageTable(heapEndVPN);
+        for (int vpn = 0; vpn < heapEndVPN; vpn++) {
+            boolean readOnly = parent.pageTable.isReadOnly(vpn);
+            pageTable.setReadOnly(vpn, readOnly);
+            if (!parent.pageTable.isValid(vpn))
+                continue;
+
+            int ppn = parent.pageTable.getPPN(vpn);
+            UserKernel.shareFrame(ppn);
+            pageTable.map(vpn, ppn);
+            if (!readOnly || parent.pageTable.isCopyOnWrite(vpn)) {
+                parent.pageTable.setCopyOnWrite(vpn, true);
+                pageTable.setCopyOnWrite(vpn, true);
+            }
+        }
+
+        parent.pageLock.release();
+        return true;
+    }
+
+    /**
+     * Return the number of pages copied so far because a process wrote a
+     * page it shared with a forked process.
+     */
+    public static int getNumPagesCopied() {
+        return numPagesCopied;
+    }
+
+    /**
+     * Wait for a child process to exit. A child can only be joined once.
+     *
+     * @param pid      the process ID of the child
+     * @param p_status a pointer to where the child's exit status is stored,
+     *                 or 0 to ignore it
+     * @return 1 if the child exited normally, 0 if it was killed because of
+     * an error, or -1 if <i>pid</i> is not a child of this process
+     */
+    private int handleJoin(int pid, int p_status) {
+        UserProcess child = children.remove(pid);
+        if(child == null) {
+            return -1;
+        }
+
+        child.exitLock.acquire();
+        while(!child.exited) {
+            child.exitCondition.sleep();
+        }
+        child.exitLock.release();
+
+        if(p_status != 0) {
+            writeVirtualMemory(p_status, Lib.bytesFromInt(child.status));
+        }
+
+        return child.exitedNormally ? 1 : 0;
+    }
+
+    /**
+     * Handle the exit() system call. Never returns.
+     *
+     * @param status the exit status, which is passed to the parent
+     */
+    private void handleExit(int status) {
+        exitedNormally = true;
+        killAndFree(status);
+    }
+
+    /**
+     * Terminate this process: release its files, memory and executable, wake
+     * a parent waiting in <tt>join()</tt>, and finish the current thread. The
+     * last process to exit terminates the kernel.
+     *
+     * @param status the exit status to report to the parent
+     */
+    protected void killAndFree(int status) {
+        Lib.debug(dbgProcess, "Killing the process and freeing allocated resources.");
+        // the I/O thread uses the files and memory freed below, but a
+        // request blocked on a pipe may be waiting for an end that only this
+        // process holds, so the pipes are closed first to let it finish
+        if(ioRing != null) {
+            openFiles.closePipes();
+            ioRing.stop();
+        }
+        for(MappedFile mappedFile : new ArrayList<>(mappedFiles.values())) {
+            unmapFile(mappedFile);
+        }
+        openFiles.closeAll();
+        unloadSections();
+        UserKernel.executables.release(executable);
+        // orphaned children are never joined
+        children.clear();
+
+        exitLock.acquire();
+        this.status = status;
+        exited = true;
+        exitCondition.wakeAll();
+        exitLock.release();
+
+        if(UserKernel.removeProcess(pid) == 0) {
+            Kernel.kernel.terminate();
+        }
+
+        UThread.finish();
+        Lib.assertNotReached();
+    }
+
+    /**
+     * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+     * <i>syscall</i> argument identifies which syscall the user executed:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>0</td><td><tt>void halt();</tt></td></tr>
+     * <tr><td>1</td><td><tt>void exit(int status);</tt></td></tr>
+     * <tr><td>2</td><td><tt>int  exec(char *name, int argc, char **argv);
+     * 								</tt></td></tr>
+     * <tr><td>3</td><td><tt>int  join(int pid, int *status);</tt></td></tr>
+     * <tr><td>4</td><td><tt>int  creat(char *name);</tt></td></tr>
+     * <tr><td>5</td><td><tt>int  open(char *name);</tt></td></tr>
+     * <tr><td>6</td><td><tt>int  read(int fd, char *buffer, int size);
      * 								</tt></td></tr>
      * <tr><td>7</td><td><tt>int  write(int fd, char *buffer, int size);
      * 								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  munmap(char *address);</tt></td></tr>
+     * <tr><td>15</td><td><tt>void *sbrk(int increment);</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  submit(struct ioRing *ring, int minComplete);
+     * 								</tt></td></tr>
+     * <tr><td>17</td><td><tt>int  dup(int fd);</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  dup2(int fd, int newFD);</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  pipe(int *fds);</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  sendfile(int outFD, int inFD, int count);
+     * 								</tt></td></tr>
+     * <tr><td>21</td><td><tt>int  readv(int fd, struct iovec *iov, int count);
+     * 								</tt></td></tr>
+     * <tr><td>22</td><td><tt>int  writev(int fd, struct iovec *iov, int count);
+     * 								</tt></td></tr>
      * </table>
      *
      * @param syscall the syscall number.
@@ -551,8 +1867,12 @@ public class UserProcess {
             case syscallCreate:
                 return handleCreat(a0);
             case syscallExit:
-                killAndFree(a0);
+                handleExit(a0);
                 break;
+            case syscallExec:
+                return handleExec(a0, a1, a2);
+            case syscallJoin:
+                return handleJoin(a0, a1);
             case syscallOpen:
                 return handleOpen(a0);
             case syscallRead:
@@ -563,6 +1883,28 @@ public class UserProcess {
                 return handleClose(a0);
             case syscallUnlink:
                 return handleUnlink(a0);
+            case syscallMmap:
+                return handleMmap(a0, a1);
+            case syscallFork:
+                return handleFork();
+            case syscallMunmap:
+                return handleMunmap(a0);
+            case syscallSbrk:
+                return handleSbrk(a0);
+            case syscallSubmit:
+                return handleSubmit(a0, a1);
+            case syscallDup:
+                return handleDup(a0);
+            case syscallDup2:
+                return handleDup2(a0, a1);
+            case syscallPipe:
+                return handlePipe(a0);
+            case syscallSendfile:
+                return handleSendfile(a0, a1, a2);
+            case syscallReadv:
+                return handleReadv(a0, a1, a2);
+            case syscallWritev:
+                return handleWritev(a0, a1, a2);
 
             default:
                 Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -596,6 +1938,28 @@ public class UserProcess {
                 return "close";
             case syscallUnlink:
                 return "unlink";
+            case syscallMmap:
+                return "mmap";
+            case syscallFork:
+                return "fork";
+            case syscallMunmap:
+                return "munmap";
+            case syscallSbrk:
+                return "sbrk";
+            case syscallSubmit:
+                return "submit";
+            case syscallDup:
+                return "dup";
+            case syscallDup2:
+                return "dup2";
+            case syscallPipe:
+                return "pipe";
+            case syscallSendfile:
+                return "sendfile";
+            case syscallReadv:
+                return "readv";
+            case syscallWritev:
+                return "writev";
             default:
                 return "unknown syscall";
         }
@@ -624,23 +1988,388 @@ public class UserProcess {
                 processor.advancePC();
                 break;
 
+            case Processor.exceptionPageFault:
+                int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+                boolean loaded = false;
+                if(vpn < pageTable.getNumPages()) {
+                    // the I/O ring's thread may have loaded the page meanwhile
+                    pageLock.acquire();
+                    loaded = pageTable.isValid(vpn) || loadPage(vpn);
+                    pageLock.release();
+                }
+                if(!loaded) {
+                    Lib.debug(dbgProcess, "Page fault outside of address space");
+                    killAndFree(-1);
+                }
+                // the processor's table is extended when a page past its end
+                // is mapped, here or by a syscall
+                processor.setPageTable(pageTable.getProcessorPageTable());
+                break;
+
+            case Processor.exceptionReadOnly:
+                vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+                pageLock.acquire();
+                boolean copied = copyPage(vpn);
+                pageLock.release();
+                if(!copied) {
+                    Lib.debug(dbgProcess, "Write to a read-only page");
+                    killAndFree(-1);
+                }
+                break;
+
             default:
                 Lib.debug(dbgProcess, "Unexpected exception: " +
                         Processor.exceptionNames[cause]);
-                Lib.assertNotReached("Unexpected exception");
+                killAndFree(-1);
+        }
+    }
+
+    /**
+     * A file mapped into the address space by <tt>mmap()</tt>.
+     */
+    protected static class MappedFile {
+        MappedFile(int fd, OpenFile file, int firstVPN, int length) {
+            this.fd = fd;
+            this.file = file;
+            this.firstVPN = firstVPN;
+            this.length = length;
+            numPages = (length + pageSize - 1) / pageSize;
+        }
+
+        /**
+         * Fill a physical page with the part of the file a virtual page maps,
+         * and zeros past the end of the file.
+         *
+         * @param vpn one of the pages of the mapping.
+         * @param ppn the physical page to fill.
+         * @return <tt>true</tt> if the file could be read.
+         */
+        public boolean readPage(int vpn, int ppn) {
+            byte[] memory = Machine.processor().getMemory();
+            int offset = (vpn - firstVPN) * pageSize;
+            int paddr = ppn * pageSize;
+
+            int amount = file.read(offset, memory, paddr, Math.min(pageSize, length - offset));
+            if (amount < 0)
+                return false;
+            Arrays.fill(memory, paddr + amount, paddr + pageSize, (byte) 0);
+            return true;
+        }
+
+        /**
+         * Write a physical page back to the part of the file a virtual page
+         * maps. Anything past the end of the file is dropped.
+         *
+         * @param vpn one of the pages of the mapping.
+         * @param ppn the physical page backing it.
+         * @return <tt>true</tt> if the file could be written.
+         */
+        public boolean writePage(int vpn, int ppn) {
+            byte[] memory = Machine.processor().getMemory();
+            int offset = (vpn - firstVPN) * pageSize;
+            int amount = Math.min(pageSize, length - offset);
+
+            return file.write(offset, memory, ppn * pageSize, amount) == amount;
         }
+
+        final int fd;
+        final OpenFile file;
+        final int firstVPN;
+        final int numPages;
+        final int length;
     }
 
+    /**
+     * The submission and completion rings a process set up in its own memory
+     * for <tt>submit()</tt>, and the kernel thread that works through them.
+     * The thread takes requests in order, performs each one as the system
+     * call named by its opcode would, and posts the result to the completion
+     * ring. It only takes a request when the completion ring has room for its
+     * result, and stops when there are no more requests to take until the
+     * next <tt>submit()</tt>.
+     *
+     * <p>
+     * The ring is a <tt>struct ioRing</tt>, as declared in
+     * <tt>syscall.h</tt>. Its head and tail counters run freely, and an
+     * entry's slot is its counter modulo the ring size. The thread stages
+     * data in its own buffer, and a bad pointer in a request only fails that
+     * request, since the thread cannot kill the process.
+     */
+    private class IORing {
+        IORing(int address) {
+            this.address = address;
+
+            worker = new KThread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            });
+            worker.setName(executable.getName() + " I/O").fork();
+        }
+
+        /**
+         * Wake the thread for newly queued requests, and wait until at least
+         * <i>minComplete</i> completions are waiting or the thread runs out
+         * of requests it can take.
+         *
+         * @param minComplete the number of completions to wait for.
+         * @return the number of completions waiting, or -1 if the ring
+         * cannot be read.
+         */
+        int submit(int minComplete) {
+            lock.acquire();
+            working = true;
+            workQueued.wake();
+            int waiting;
+            while((waiting = getNumCompletionsWaiting()) < minComplete && working) {
+                workDone.sleep();
+            }
+            lock.release();
+            return waiting;
+        }
+
+        /**
+         * Stop the thread once it finishes the request it is performing, and
+         * wait for it to exit. Requests still queued are never performed.
+         */
+        void stop() {
+            lock.acquire();
+            stopping = true;
+            workQueued.wake();
+            lock.release();
+            worker.join();
+        }
+
+        private void work() {
+            lock.acquire();
+            while(!stopping) {
+                if(!working) {
+                    workQueued.sleep();
+                    continue;
+                }
+
+                lock.release();
+                boolean performed = performNext();
+                lock.acquire();
+
+                if(!performed) {
+                    working = false;
+                }
+                workDone.wakeAll();
+            }
+            lock.release();
+        }
+
+        private int getNumCompletionsWaiting() {
+            if(readVirtualMemory(address + completeHeadOffset, waitHeader) < waitHeader.length) {
+                return -1;
+            }
+            return Lib.bytesToInt(waitHeader, 4) - Lib.bytesToInt(waitHeader, 0);
+        }
+
+        /**
+         * Take the next request, perform it and post its completion.
+         *
+         * @return <tt>true</tt> if a request was performed.
+         */
+        private boolean performNext() {
+            if(readVirtualMemory(address, header) < headerSize) {
+                return false;
+            }
+            int size = Lib.bytesToInt(header, 0);
+            int requests = Lib.bytesToInt(header, 4);
+            int completions = Lib.bytesToInt(header, 8);
+            int submitHead = Lib.bytesToInt(header, submitHeadOffset);
+            int submitTail = Lib.bytesToInt(header, submitHeadOffset + 4);
+            int completeHead = Lib.bytesToInt(header, completeHeadOffset);
+            int completeTail = Lib.bytesToInt(header, completeHeadOffset + 4);
+
+            int numCompletions = completeTail - completeHead;
+            if(size <= 0 || submitHead == submitTail
+                    || numCompletions < 0 || numCompletions >= size) {
+                return false;
+            }
+
+            int slot = Integer.remainderUnsigned(submitHead, size);
+            if(readVirtualMemory(requests + slot * requestSize, request) < requestSize) {
+                return false;
+            }
+            int result = perform(Lib.bytesToInt(request, 0), Lib.bytesToInt(request, 4),
+                    Lib.bytesToInt(request, 8), Lib.bytesToInt(request, 12));
+
+            // the completion before the counters, so a program that sees the
+            // counters move can read it
+            Lib.bytesFromInt(completion, 0, Lib.bytesToInt(request, 16));
+            Lib.bytesFromInt(completion, 4, result);
+            slot = Integer.remainderUnsigned(completeTail, size);
+            if(writeVirtualMemory(completions + slot * completionSize, completion) < completionSize) {
+                return false;
+            }
+            if(writeVirtualMemory(address + submitHeadOffset, Lib.bytesFromInt(submitHead + 1)) < 4
+                    || writeVirtualMemory(address + completeHeadOffset + 4, Lib.bytesFromInt(completeTail + 1)) < 4) {
+                return false;
+            }
+            return true;
+        }
+
+        private int perform(int opcode, int fd, int p_buffer, int count) {
+            switch(opcode) {
+                case syscallCreate:
+                case syscallOpen:
+                    String name = readVirtualMemoryString(p_buffer, MAX_STRING_ARG_LENGTH-1);
+                    return (name == null) ? -1 : openFile(name, opcode == syscallCreate);
+                case syscallRead:
+                case syscallWrite:
+                    OpenFileDescription description = openFiles.getDescription(fd);
+                    if(description == null || count < 0 || mappedFiles.containsKey(fd)
+                            || (count > 0 && !validVirtualAddress(p_buffer))) {
+                        return -1;
+                    }
+                    return (opcode == syscallRead)
+                            ? readFile(description, p_buffer, count, buffer)
+                            : writeFile(description, p_buffer, count, buffer);
+                case syscallClose:
+                    return handleClose(fd);
+                default:
+                    return -1;
+            }
+        }
+
+        final int address;
+        private final KThread worker;
+        private final Lock lock = new Lock("I/O ring");
+        private final Condition2 workQueued = new Condition2(lock, "I/O queued");
+        private final Condition2 workDone = new Condition2(lock, "I/O done");
+        // set by submit(), and cleared by the thread when it runs out of requests
+        private boolean working = false;
+        private boolean stopping = false;
+
+        // used by the thread only, except waitHeader, used by submit()
+        private final byte[] buffer = new byte[pageSize];
+        private final byte[] header = new byte[headerSize];
+        private final byte[] request = new byte[requestSize];
+        private final byte[] completion = new byte[completionSize];
+        private final byte[] waitHeader = new byte[8];
+
+        // struct ioRing { size, requests, completions, submitHead, submitTail,
+        // completeHead, completeTail }
+        private static final int headerSize = 28;
+        private static final int submitHeadOffset = 12;
+        private static final int completeHeadOffset = 20;
+        // struct ioRequest { opcode, fd, buffer, count, tag }
+        private static final int requestSize = 20;
+        // struct ioCompletion { tag, result }
+        private static final int completionSize = 8;
+    }
+
+    /**
+     * The buffers of a <tt>readv()</tt> or <tt>writev()</tt> call, and how
+     * far the call has got through them.
+     */
+    private class IOVector {
+        IOVector(int[] bases, int[] lengths, int length) {
+            this.bases = bases;
+            this.lengths = lengths;
+            this.length = length;
+        }
+
+        /**
+         * Copy the next <i>n</i> bytes of the buffers to or from the start
+         * of <i>data</i>, and move past them.
+         *
+         * @param data      the kernel array.
+         * @param n         the number of bytes to copy.
+         * @param toProcess <tt>true</tt> to copy from <i>data</i> into the
+         *                  buffers, <tt>false</tt> to copy the other way.
+         * @return the number of bytes copied, which is smaller than <i>n</i>
+         * if a page of a buffer could not be accessed.
+         */
+        int transfer(byte[] data, int n, boolean toProcess) {
+            int done = 0;
+            while(done < n && segment < bases.length) {
+                int amount = Math.min(n - done, lengths[segment] - segmentOffset);
+                int vaddr = bases[segment] + segmentOffset;
+                int copied = toProcess
+                        ? writeVirtualMemory(vaddr, data, done, amount)
+                        : readVirtualMemory(vaddr, data, done, amount);
+                done += copied;
+                segmentOffset += copied;
+                if(copied < amount) {
+                    break;
+                }
+
+                if(segmentOffset == lengths[segment]) {
+                    segment++;
+                    segmentOffset = 0;
+                }
+            }
+            return done;
+        }
+
+        final int[] bases;
+        final int[] lengths;
+        // the total length of the buffers
+        final int length;
+        // the buffer transfer() continues in, and how far into it
+        private int segment = 0;
+        private int segmentOffset = 0;
+    }
+
+    /**
+     * An open file and the number of file descriptors, in any process, that
+     * refer to it. Descriptors made by <tt>dup()</tt>, <tt>dup2()</tt>,
+     * <tt>exec()</tt> and <tt>fork()</tt> share the description, and with it
+     * the file's position. The file is closed with the last descriptor.
+     */
+    private static class OpenFileDescription {
+        OpenFileDescription(OpenFile file) {
+            this.file = file;
+        }
+
+        final OpenFile file;
+        int refCount = 1;
+        // held while reading or writing, since the file system sleeps
+        // between using the position and moving it
+        final Lock lock = new Lock("open file");
+    }
+
+    /**
+     * The file descriptor table of a process. Descriptors index an array
+     * that doubles when it is full, up to <tt>MAX_OPEN_FILES</tt> entries,
+     * and a bitmap of the descriptors in use finds the lowest free one a word
+     * at a time, starting from the first word that may have a free bit.
+     */
     private class OpenFiles {
 
         public static final int FD_STD_INPUT = 0;
         public static final int FD_STD_OUTPUT = 1;
-        public static final int MAX_OPEN_FILES = 10;
-        private OpenFile openFiles[] = new OpenFile[MAX_OPEN_FILES];
+        public static final int MAX_OPEN_FILES = 1024;
+        private OpenFileDescription descriptions[] = new OpenFileDescription[64];
+        // one bit per descriptor in use, as long as descriptions
+        private long usedBits[] = new long[1];
+        // the words below this one have no free bits
+        private int firstFreeWord = 0;
 
         OpenFiles() {
-            openFiles[FD_STD_INPUT] = UserKernel.console.openForReading();
-            openFiles[FD_STD_OUTPUT] = UserKernel.console.openForWriting();
+            add(UserKernel.console.openForReading());
+            add(UserKernel.console.openForWriting());
+        }
+
+        /**
+         * Make a table that refers to the same open files as another one,
+         * under the same descriptors.
+         *
+         * @param other the table to copy.
+         */
+        OpenFiles(OpenFiles other) {
+            descriptions = other.descriptions.clone();
+            usedBits = other.usedBits.clone();
+            firstFreeWord = other.firstFreeWord;
+            for(OpenFileDescription description : descriptions) {
+                if(description != null) {
+                    description.refCount++;
+                }
+            }
         }
 
         /**
@@ -648,50 +2377,148 @@ public class UserProcess {
          *     The process will add a currently open file to the filestream
          *</p>
          * @param openFile file to be added to the array of openFiles
-         * @return the file descriptor of the openFile or -1 if all file descriptors are occupied
+         * @return the lowest free file descriptor, now referring to the
+         * openFile, or -1 if all file descriptors are occupied
          */
         private int add(OpenFile openFile) {
             if(openFile == null) {
                 return -1;
             }
 
-            for(int i = 2; i < MAX_OPEN_FILES; i++){
-                if( openFiles[i] == null ) {
-                    openFiles[i] = openFile;
-                    return i;
-                }
+            int fd = allocate();
+            if(fd != -1) {
+                descriptions[fd] = new OpenFileDescription(openFile);
             }
-
-            Lib.debug(dbgProcess, "No available file descriptors");
-            return -1;
+            return fd;
         }
 
         private OpenFile get(int fd) {
-            if(fd > MAX_OPEN_FILES-1 || fd < 0) {
+            OpenFileDescription description = getDescription(fd);
+            return (description == null) ? null : description.file;
+        }
+
+        private OpenFileDescription getDescription(int fd) {
+            if(fd >= descriptions.length || fd < 0) {
                 return null;
             }
 
-            return openFiles[fd];
+            return descriptions[fd];
         }
 
-        private int remove(int fd) {
-            if(fd > MAX_OPEN_FILES-1 || fd < 0) {
+        /**
+         * Make the lowest free file descriptor refer to the same open file as
+         * <i>fd</i>.
+         *
+         * @return the new file descriptor, or -1 if <i>fd</i> is not open or
+         * all file descriptors are occupied
+         */
+        private int dup(int fd) {
+            if(get(fd) == null) {
                 return -1;
             }
-            if(openFiles[fd] != null) {
-                openFiles[fd].close();
-                openFiles[fd] = null;
-                return 0;
+
+            int newFD = allocate();
+            if(newFD != -1) {
+                descriptions[newFD] = descriptions[fd];
+                descriptions[fd].refCount++;
             }
-            return -1;
+            return newFD;
+        }
+
+        /**
+         * Make <i>newFD</i>, which must not be open, refer to the same open
+         * file as <i>fd</i>.
+         *
+         * @return <i>newFD</i>, or -1 if <i>fd</i> is not open or
+         * <i>newFD</i> is out of range
+         */
+        private int dup2(int fd, int newFD) {
+            if(get(fd) == null || newFD < 0 || newFD >= MAX_OPEN_FILES) {
+                return -1;
+            }
+            Lib.assertTrue(get(newFD) == null);
 
+            grow(newFD);
+            descriptions[newFD] = descriptions[fd];
+            descriptions[fd].refCount++;
+            setUsed(newFD, true);
+            return newFD;
+        }
+
+        private int remove(int fd) {
+            if(get(fd) == null) {
+                return -1;
+            }
+
+            OpenFileDescription description = descriptions[fd];
+            descriptions[fd] = null;
+            setUsed(fd, false);
+            if(--description.refCount == 0) {
+                description.file.close();
+            }
+            return 0;
         }
 
         private void closeAll() {
-            for(int i = 0; i < MAX_OPEN_FILES; i++) {
+            for(int i = 0; i < descriptions.length; i++) {
                 remove(i);
             }
         }
+
+        private void closePipes() {
+            for(int i = 0; i < descriptions.length; i++) {
+                if(descriptions[i] != null && descriptions[i].file instanceof Pipe.End) {
+                    remove(i);
+                }
+            }
+        }
+
+        private int allocate() {
+            int word = firstFreeWord;
+            while(word < usedBits.length && usedBits[word] == -1L) {
+                word++;
+            }
+            firstFreeWord = word;
+
+            int fd = word * 64;
+            if(word < usedBits.length) {
+                fd += Long.numberOfTrailingZeros(~usedBits[word]);
+            }
+            if(fd >= MAX_OPEN_FILES) {
+                Lib.debug(dbgProcess, "No available file descriptors");
+                return -1;
+            }
+
+            grow(fd);
+            setUsed(fd, true);
+            return fd;
+        }
+
+        /**
+         * Make room in the table for <i>fd</i>, doubling it as many times as
+         * needed.
+         */
+        private void grow(int fd) {
+            int length = descriptions.length;
+            while(fd >= length) {
+                length *= 2;
+            }
+            if(length > descriptions.length) {
+                descriptions = Arrays.copyOf(descriptions, length);
+                usedBits = Arrays.copyOf(usedBits, (length + 63) / 64);
+            }
+        }
+
+        private void setUsed(int fd, boolean used) {
+            int word = fd / 64;
+            if(used) {
+                usedBits[word] |= 1L << fd;
+            }
+            else {
+                usedBits[word] &= ~(1L << fd);
+                firstFreeWord = Math.min(firstFreeWord, word);
+            }
+        }
     }
 
 }
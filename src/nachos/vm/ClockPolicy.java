@@ -0,0 +1,52 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock algorithm. A hand sweeps over physical memory, clearing the
+ * <tt>used</tt> bit of every page it passes, and stops at the first page
+ * whose bit was already clear.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public String getName() {
+	return "clock";
+    }
+
+    public void pageLoaded(int ppn) {
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    public int selectVictims(InvertedPageTable table, int[] victims) {
+	int numPhysPages = table.getNumPhysPages();
+	int numVictims = 0;
+
+	// after one lap every used bit is clear, so two laps always suffice
+	for (int scanned=0;
+	     scanned < 2*numPhysPages && numVictims < victims.length;
+	     scanned++) {
+	    int ppn = hand;
+	    hand = (hand + 1) % numPhysPages;
+
+	    if (!table.isEvictable(ppn))
+		continue;
+
+	    if (table.testAndClearUsed(ppn))
+		continue;
+
+	    table.pin(ppn);
+	    victims[numVictims++] = ppn;
+	}
+
+	return numVictims;
+    }
+
+    private int hand = 0;
+}
@@ -0,0 +1,103 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A hashed page table, which finds the physical page backing a virtual page
+ * of any process from the pair (process ID, virtual page). Only resident
+ * pages are in the table, so it has one entry per physical page, and the
+ * hash chains are linked through arrays indexed by physical page. Lookups,
+ * insertions and removals allocate nothing.
+ *
+ * <p>
+ * The table is updated while holding <tt>VMKernel.vmLock</tt>. Lookups only
+ * need interrupts disabled, so that the page cannot be evicted before the
+ * caller has used the translation.
+ */
+public class HashedPageTable {
+    /**
+     * Allocate a new, empty hashed page table.
+     *
+     * @param	numPhysPages	the number of physical pages.
+     */
+    public HashedPageTable(int numPhysPages) {
+	int numBuckets = 1;
+	while (numBuckets < 2*numPhysPages)
+	    numBuckets *= 2;
+
+	buckets = new int[numBuckets];
+	hashShift = 32 - Integer.numberOfTrailingZeros(numBuckets);
+	for (int i=0; i<numBuckets; i++)
+	    buckets[i] = -1;
+
+	pids = new int[numPhysPages];
+	vpns = new int[numPhysPages];
+	next = new int[numPhysPages];
+    }
+
+    /**
+     * Record that a physical page backs a virtual page.
+     *
+     * @param	pid	the process ID of the owner.
+     * @param	vpn	the virtual page.
+     * @param	ppn	the physical page, which must not be in the table.
+     */
+    public void insert(int pid, int vpn, int ppn) {
+	int bucket = hash(pid, vpn);
+
+	pids[ppn] = pid;
+	vpns[ppn] = vpn;
+	next[ppn] = buckets[bucket];
+	buckets[bucket] = ppn;
+    }
+
+    /**
+     * Remove a physical page from the table.
+     *
+     * @param	ppn	a physical page that is in the table.
+     */
+    public void remove(int ppn) {
+	int bucket = hash(pids[ppn], vpns[ppn]);
+
+	if (buckets[bucket] == ppn) {
+	    buckets[bucket] = next[ppn];
+	    return;
+	}
+
+	int prev = buckets[bucket];
+	while (next[prev] != ppn) {
+	    prev = next[prev];
+	    Lib.assertTrue(prev != -1);
+	}
+	next[prev] = next[ppn];
+    }
+
+    /**
+     * Find the physical page backing a virtual page.
+     *
+     * @param	pid	the process ID of the owner.
+     * @param	vpn	the virtual page.
+     * @return	the physical page, or -1 if the page is not resident.
+     */
+    public int lookup(int pid, int vpn) {
+	for (int ppn=buckets[hash(pid, vpn)]; ppn != -1; ppn=next[ppn]) {
+	    if (vpns[ppn] == vpn && pids[ppn] == pid)
+		return ppn;
+	}
+	return -1;
+    }
+
+    private int hash(int pid, int vpn) {
+	// Fibonacci hashing; consecutive pages land in different buckets
+	int key = pid * 0x10001 + vpn;
+	return ((key * 0x9E3779B9) >>> hashShift) & (buckets.length - 1);
+    }
+
+    /** The first physical page in each hash chain, or -1. */
+    private int[] buckets;
+    private int hashShift;
+    /** The key of each physical page, and the next page in its chain. */
+    private int[] pids;
+    private int[] vpns;
+    private int[] next;
+}
@@ -0,0 +1,270 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.userprog.*;
+
+/**
+ * An inverted page table, with one entry per physical page recording the
+ * process and virtual page it backs, and how many times it is pinned. It is
+ * the view of memory that page replacement works from: a policy walks the
+ * physical pages, and finds the page table entry, with its used and dirty
+ * bits, through the owner.
+ *
+ * <p>
+ * A page merged by the <tt>PageDeduplicator</tt> backs several virtual
+ * pages. The first one is its owner, and the others are kept in a list.
+ * If the owner stops sharing the page, the next one on the list becomes
+ * the owner.
+ *
+ * <p>
+ * Mapping and unmapping must be done while holding <tt>VMKernel.vmLock</tt>.
+ * Pinning is also done by the kernel while it copies data to and from user
+ * memory, so it only disables interrupts.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table in which every page is free.
+     *
+     * @param	numPhysPages	the number of physical pages.
+     */
+    public InvertedPageTable(int numPhysPages) {
+	owners = new VMProcess[numPhysPages];
+	vpns = new int[numPhysPages];
+	pins = new int[numPhysPages];
+	sharers = new Sharer[numPhysPages];
+    }
+
+    /**
+     * Return the number of physical pages.
+     */
+    public int getNumPhysPages() {
+	return owners.length;
+    }
+
+    /**
+     * Record that a physical page backs a virtual page of a process. The
+     * page starts out pinned once, by the caller that is loading it.
+     *
+     * @param	ppn	the physical page.
+     * @param	owner	the process the page belongs to.
+     * @param	vpn	the virtual page it backs.
+     */
+    public void map(int ppn, VMProcess owner, int vpn) {
+	Lib.assertTrue(owners[ppn] == null);
+
+	owners[ppn] = owner;
+	vpns[ppn] = vpn;
+	pins[ppn] = 1;
+    }
+
+    /**
+     * Record that a physical page no longer backs any virtual page.
+     *
+     * @param	ppn	the physical page.
+     */
+    public void unmap(int ppn) {
+	owners[ppn] = null;
+	sharers[ppn] = null;
+	pins[ppn] = 0;
+    }
+
+    /**
+     * Record that a physical page that already has an owner also backs a
+     * virtual page of another process, or another page of the same one.
+     *
+     * @param	ppn	the physical page.
+     * @param	process	the process that shares the page.
+     * @param	vpn	the virtual page it backs.
+     */
+    public void share(int ppn, VMProcess process, int vpn) {
+	Lib.assertTrue(owners[ppn] != null);
+
+	Sharer sharer = new Sharer();
+	sharer.process = process;
+	sharer.vpn = vpn;
+	sharer.next = sharers[ppn];
+	sharers[ppn] = sharer;
+    }
+
+    /**
+     * Record that a shared physical page no longer backs one of its virtual
+     * pages.
+     *
+     * @param	ppn	the physical page, which must back at least one other
+     *			virtual page.
+     * @param	process	the process that stops sharing the page.
+     * @param	vpn	the virtual page.
+     */
+    public void unshare(int ppn, VMProcess process, int vpn) {
+	Lib.assertTrue(sharers[ppn] != null);
+
+	if (owners[ppn] == process && vpns[ppn] == vpn) {
+	    owners[ppn] = sharers[ppn].process;
+	    vpns[ppn] = sharers[ppn].vpn;
+	    sharers[ppn] = sharers[ppn].next;
+	    return;
+	}
+
+	Sharer prev = null;
+	for (Sharer sharer=sharers[ppn]; sharer!=null; sharer=sharer.next) {
+	    if (sharer.process == process && sharer.vpn == vpn) {
+		if (prev == null)
+		    sharers[ppn] = sharer.next;
+		else
+		    prev.next = sharer.next;
+		return;
+	    }
+	    prev = sharer;
+	}
+	Lib.assertNotReached("page is not shared by this process");
+    }
+
+    /**
+     * Return the number of virtual pages a physical page backs.
+     *
+     * @param	ppn	the physical page.
+     * @return	the number of virtual pages, 0 if the page is free.
+     */
+    public int getNumMappings(int ppn) {
+	if (owners[ppn] == null)
+	    return 0;
+
+	int numMappings = 1;
+	for (Sharer sharer=sharers[ppn]; sharer!=null; sharer=sharer.next)
+	    numMappings++;
+	return numMappings;
+    }
+
+    /**
+     * Return one of the processes a physical page belongs to.
+     *
+     * @param	ppn	the physical page.
+     * @param	i	the mapping, from 0, the owner, to
+     *			<tt>getNumMappings(ppn)-1</tt>.
+     */
+    public VMProcess getOwner(int ppn, int i) {
+	if (i == 0)
+	    return owners[ppn];
+	return getSharer(ppn, i).process;
+    }
+
+    /**
+     * Return one of the virtual pages a physical page backs.
+     *
+     * @param	ppn	the physical page.
+     * @param	i	the mapping, as for <tt>getOwner(ppn, i)</tt>.
+     */
+    public int getVPN(int ppn, int i) {
+	if (i == 0)
+	    return getVPN(ppn);
+	return getSharer(ppn, i).vpn;
+    }
+
+    private Sharer getSharer(int ppn, int i) {
+	Sharer sharer = sharers[ppn];
+	for (int j=1; j<i; j++)
+	    sharer = sharer.next;
+	return sharer;
+    }
+
+    /**
+     * Return the process a physical page belongs to.
+     *
+     * @param	ppn	the physical page.
+     * @return	the owner, or <tt>null</tt> if the page is free.
+     */
+    public VMProcess getOwner(int ppn) {
+	return owners[ppn];
+    }
+
+    /**
+     * Return the virtual page a physical page backs.
+     *
+     * @param	ppn	a physical page that has an owner.
+     */
+    public int getVPN(int ppn) {
+	Lib.assertTrue(owners[ppn] != null);
+	return vpns[ppn];
+    }
+
+    /**
+     * Return whether a physical page was used since this was last called for
+     * it, and clear its owner's used bit. The used and dirty bits of pages in
+     * the TLB are only up to date after <tt>VMProcess.syncTLB()</tt>.
+     *
+     * @param	ppn	a physical page that has an owner.
+     */
+    public boolean testAndClearUsed(int ppn) {
+	PageTable pageTable = owners[ppn].getPageTable();
+	int vpn = getVPN(ppn);
+	if (!pageTable.isUsed(vpn))
+	    return false;
+
+	pageTable.setUsed(vpn, false);
+	return true;
+    }
+
+    /**
+     * Return whether the owner's page table marks a physical page as dirty.
+     *
+     * @param	ppn	a physical page that has an owner.
+     */
+    public boolean isDirty(int ppn) {
+	return owners[ppn].getPageTable().isDirty(getVPN(ppn));
+    }
+
+    /**
+     * Mark a physical page as clean in its owner's page table, once it has
+     * been written back.
+     *
+     * @param	ppn	a physical page that has an owner.
+     */
+    public void clearDirty(int ppn) {
+	owners[ppn].getPageTable().setDirty(getVPN(ppn), false);
+    }
+
+    /**
+     * Test whether a physical page may be evicted: it belongs to a process
+     * and is not pinned.
+     *
+     * @param	ppn	the physical page.
+     */
+    public boolean isEvictable(int ppn) {
+	return owners[ppn] != null && pins[ppn] == 0;
+    }
+
+    /**
+     * Prevent a physical page from being evicted.
+     *
+     * @param	ppn	the page to pin.
+     */
+    public void pin(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+	pins[ppn]++;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release a page pinned by <tt>pin()</tt> or <tt>map()</tt>.
+     *
+     * @param	ppn	the page to unpin.
+     */
+    public void unpin(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(pins[ppn] > 0);
+	pins[ppn]--;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private VMProcess[] owners;
+    private int[] vpns;
+    private int[] pins;
+    /** The virtual pages other than the owner's that share each page. */
+    private Sharer[] sharers;
+
+    private static class Sharer {
+	VMProcess process;
+	int vpn;
+	Sharer next;
+    }
+}
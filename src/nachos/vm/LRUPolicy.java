@@ -0,0 +1,64 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Approximate LRU, using the aging algorithm. Every physical page has an
+ * 8-bit age. Each time pages are selected for eviction, every age is
+ * shifted right by one and the page's <tt>used</tt> bit is shifted in at
+ * the top, then cleared. The pages with the lowest ages, those used least
+ * in the most recent selections, are evicted.
+ */
+public class LRUPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new approximate LRU policy.
+     */
+    public LRUPolicy() {
+	ages = new int[Machine.processor().getNumPhysPages()];
+    }
+
+    public String getName() {
+	return "LRU";
+    }
+
+    public void pageLoaded(int ppn) {
+	// the loading access counts as a use
+	ages[ppn] = 0x80;
+    }
+
+    public void pageFreed(int ppn) {
+	ages[ppn] = 0;
+    }
+
+    public int selectVictims(InvertedPageTable table, int[] victims) {
+	int numPhysPages = table.getNumPhysPages();
+
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    if (table.getOwner(ppn) == null)
+		continue;
+
+	    ages[ppn] >>>= 1;
+	    if (table.testAndClearUsed(ppn))
+		ages[ppn] |= 0x80;
+	}
+
+	int numVictims = 0;
+	while (numVictims < victims.length) {
+	    int victim = -1;
+	    for (int ppn=0; ppn<numPhysPages; ppn++) {
+		if (table.isEvictable(ppn)
+		    && (victim == -1 || ages[ppn] < ages[victim]))
+		    victim = ppn;
+	    }
+	    if (victim == -1)
+		break;
+
+	    table.pin(victim);
+	    victims[numVictims++] = victim;
+	}
+
+	return numVictims;
+    }
+
+    private int[] ages;
+}
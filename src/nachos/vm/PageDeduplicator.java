@@ -0,0 +1,151 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * A kernel thread that finds physical pages with identical contents and
+ * merges them, so that processes running the same program with similar data
+ * fit in less memory. Every <tt>VMKernel.dedupInterval</tt> ticks, it hashes
+ * every resident page, compares pages with equal hashes byte for byte, and
+ * maps each duplicate to a single physical page, read-only. The first write
+ * to a merged page gives the writer its own copy again, through the
+ * <tt>exceptionReadOnly</tt> fault.
+ *
+ * <p>
+ * Only clean pages are merged: pages whose contents are still in swap or in
+ * the executable. A merged page stays clean, since it cannot be written, so
+ * evicting it never writes it back: each process reloads the page from its
+ * own swap slot or executable.
+ */
+public class PageDeduplicator {
+    /**
+     * Allocate a new page deduplicator.
+     *
+     * @param	interval	the number of ticks between scans.
+     */
+    public PageDeduplicator(long interval) {
+	Lib.assertTrue(interval > 0);
+	this.interval = interval;
+    }
+
+    /**
+     * Fork the kernel thread that scans memory.
+     */
+    public void start() {
+	KThread thread = new KThread(new Runnable() {
+		public void run() {
+		    while (true) {
+			ThreadedKernel.alarm.waitUntil(interval);
+			scan();
+		    }
+		}
+	    });
+	thread.setName("page deduplicator").fork();
+    }
+
+    /**
+     * Merge every clean, unpinned resident page with an earlier page that
+     * has the same contents.
+     */
+    public void scan() {
+	VMKernel.vmLock.acquire();
+
+	// the dirty bits in the TLB must be in the page tables first
+	VMProcess.syncTLB();
+
+	InvertedPageTable table = VMKernel.invertedPageTable;
+	byte[] memory = Machine.processor().getMemory();
+	HashMap<Integer, Integer> pagesByHash = new HashMap<Integer, Integer>();
+
+	for (int ppn=0; ppn<table.getNumPhysPages(); ppn++) {
+	    if (!table.isEvictable(ppn) || table.isDirty(ppn))
+		continue;
+
+	    Integer hash = hashPage(memory, ppn);
+	    Integer other = pagesByHash.get(hash);
+	    if (other == null) {
+		pagesByHash.put(hash, ppn);
+		continue;
+	    }
+
+	    if (!samePage(memory, other, ppn))
+		continue;
+
+	    if (table.getNumMappings(ppn) == 1) {
+		merge(table, other, ppn);
+	    }
+	    else if (table.getNumMappings(other) == 1) {
+		merge(table, ppn, other);
+		pagesByHash.put(hash, ppn);
+	    }
+	}
+
+	numScans++;
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Make the virtual page backed by <i>duplicate</i> share <i>ppn</i>
+     * instead, and free <i>duplicate</i>.
+     */
+    private void merge(InvertedPageTable table, int ppn, int duplicate) {
+	VMProcess process = table.getOwner(duplicate);
+	int vpn = table.getVPN(duplicate);
+
+	for (int i=0; i<table.getNumMappings(ppn); i++)
+	    table.getOwner(ppn, i).mergePage(table.getVPN(ppn, i));
+
+	process.unmap(vpn);
+	VMKernel.releaseFrame(duplicate);
+
+	process.mapMergedPage(vpn, ppn);
+	table.share(ppn, process, vpn);
+
+	numPagesMerged++;
+	Lib.debug(dbgVM, "merged page " + duplicate + " into " + ppn);
+    }
+
+    /**
+     * Called when a merged page gets its own physical page again because it
+     * was written.
+     */
+    void pageUnmerged() {
+	numPagesUnmerged++;
+    }
+
+    /**
+     * Print the deduplication statistics.
+     */
+    public void print() {
+	System.out.println("Dedup: scans " + numScans + ", pages merged "
+			   + numPagesMerged + ", copied on write "
+			   + numPagesUnmerged);
+    }
+
+    private static int hashPage(byte[] memory, int ppn) {
+	int hash = 0;
+	for (int i=ppn*pageSize; i<(ppn+1)*pageSize; i++)
+	    hash = 31*hash + memory[i];
+	return hash;
+    }
+
+    private static boolean samePage(byte[] memory, int ppn1, int ppn2) {
+	int offset1 = ppn1*pageSize, offset2 = ppn2*pageSize;
+	for (int i=0; i<pageSize; i++) {
+	    if (memory[offset1+i] != memory[offset2+i])
+		return false;
+	}
+	return true;
+    }
+
+    private long interval;
+    private int numScans = 0;
+    private int numPagesMerged = 0;
+    private int numPagesUnmerged = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,127 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * A kernel thread that loads pages before they are touched. When a page
+ * fault continues a sequential or strided pattern, the faulting process
+ * queues the pages that come next, and this thread reads them from swap or
+ * the executable while the process keeps running. Pages are only prefetched
+ * into free physical pages, so prefetching never evicts a page itself.
+ *
+ * <p>
+ * Each process has a window: the number of pages it asks for at once, from
+ * one up to <tt>VMKernel.prefetchWindow</tt>, starting at the largest. The
+ * prefetched pages only arrive after the process has faulted a few more
+ * times, so a narrow window is usually too late to help. The window doubles
+ * each time a prefetched page is used, and is halved each time one is
+ * evicted or freed without having been used.
+ */
+public class PagePrefetcher {
+    /**
+     * Allocate a new page prefetcher.
+     *
+     * @param	maxWindow	the most pages a process can prefetch at once.
+     */
+    public PagePrefetcher(int maxWindow) {
+	Lib.assertTrue(maxWindow > 0);
+	this.maxWindow = maxWindow;
+
+	requested = new Condition2(VMKernel.vmLock, "prefetch");
+    }
+
+    /**
+     * Fork the kernel thread that loads the requested pages.
+     */
+    public void start() {
+	KThread thread = new KThread(new Runnable() {
+		public void run() {
+		    prefetchPages();
+		}
+	    });
+	thread.setName("page prefetcher").fork();
+    }
+
+    /**
+     * Return the most pages a process can prefetch at once.
+     */
+    public int getMaxWindow() {
+	return maxWindow;
+    }
+
+    /**
+     * Queue a page to be loaded. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	process	the process the page belongs to.
+     * @param	vpn	the virtual page to load.
+     */
+    void request(VMProcess process, int vpn) {
+	Lib.assertTrue(VMKernel.vmLock.isHeldByCurrentThread());
+
+	requests.add(new Request(process, vpn));
+	requested.wake();
+    }
+
+    private void prefetchPages() {
+	VMKernel.vmLock.acquire();
+
+	while (true) {
+	    while (requests.isEmpty())
+		requested.sleep();
+
+	    Request request = requests.removeFirst();
+	    if (request.process.prefetchPage(request.vpn)) {
+		numPagesPrefetched++;
+		Lib.debug(dbgVM, "prefetched vpn " + request.vpn);
+	    }
+	}
+    }
+
+    /**
+     * Called when a prefetched page is used for the first time.
+     */
+    void pageUsed() {
+	numPagesUsed++;
+    }
+
+    /**
+     * Called when a prefetched page is evicted or freed before it was used.
+     */
+    void pageWasted() {
+	numPagesWasted++;
+    }
+
+    /**
+     * Print the prefetching statistics.
+     */
+    public void print() {
+	System.out.println("Prefetch: pages " + numPagesPrefetched
+			   + ", used " + numPagesUsed
+			   + ", wasted " + numPagesWasted);
+    }
+
+    private int maxWindow;
+    /** Signaled when a page is requested. */
+    private Condition2 requested;
+    /** The requested pages, in order. */
+    private LinkedList<Request> requests = new LinkedList<Request>();
+
+    private int numPagesPrefetched = 0;
+    private int numPagesUsed = 0;
+    private int numPagesWasted = 0;
+
+    private static class Request {
+	Request(VMProcess process, int vpn) {
+	    this.process = process;
+	    this.vpn = vpn;
+	}
+
+	VMProcess process;
+	int vpn;
+    }
+
+    private static final char dbgVM = 'v';
+}
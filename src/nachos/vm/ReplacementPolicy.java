@@ -0,0 +1,47 @@
+package nachos.vm;
+
+/**
+ * A page replacement policy, which chooses the physical pages to evict when
+ * memory is full. The policy is chosen by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>, which names a class that implements
+ * this interface.
+ *
+ * <p>
+ * Policies are called with <tt>VMKernel.vmLock</tt> held, and learn which
+ * pages were recently used or written from the <tt>used</tt> and
+ * <tt>dirty</tt> bits of the page table entries. A policy may clear the
+ * <tt>used</tt> bit, but must leave the <tt>dirty</tt> bit alone.
+ */
+public interface ReplacementPolicy {
+    /**
+     * Return a short name for this policy, for reporting.
+     */
+    public String getName();
+
+    /**
+     * Called after a physical page is given to a virtual page.
+     *
+     * @param	ppn	the physical page.
+     */
+    public void pageLoaded(int ppn);
+
+    /**
+     * Called after a physical page is freed, whether it was evicted or its
+     * process exited.
+     *
+     * @param	ppn	the physical page.
+     */
+    public void pageFreed(int ppn);
+
+    /**
+     * Choose up to <tt>victims.length</tt> pages to evict. Only pages that
+     * <tt>table.isEvictable()</tt> may be chosen, and each page chosen must
+     * be pinned with <tt>table.pin()</tt>, so that it is not chosen twice.
+     *
+     * @param	table	the inverted page table.
+     * @param	victims	the array to store the chosen physical pages in.
+     * @return	the number of pages chosen, which is 0 only if every page is
+     *		pinned.
+     */
+    public int selectVictims(InvertedPageTable table, int[] victims);
+}
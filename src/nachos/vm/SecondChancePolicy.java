@@ -0,0 +1,59 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * FIFO with second chance. Pages are queued in the order they were loaded,
+ * and the oldest page is evicted, unless it was used since it was last
+ * considered: then its <tt>used</tt> bit is cleared and it goes to the back
+ * of the queue as if it were just loaded.
+ */
+public class SecondChancePolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new second chance policy.
+     */
+    public SecondChancePolicy() {
+    }
+
+    public String getName() {
+	return "second chance";
+    }
+
+    public void pageLoaded(int ppn) {
+	queue.add(ppn);
+    }
+
+    public void pageFreed(int ppn) {
+	queue.remove(Integer.valueOf(ppn));
+    }
+
+    public int selectVictims(InvertedPageTable table, int[] victims) {
+	int numVictims = 0;
+
+	for (int scanned=0, queued=queue.size();
+	     scanned < 2*queued && numVictims < victims.length;
+	     scanned++) {
+	    int ppn = queue.removeFirst();
+
+	    if (!table.isEvictable(ppn)) {
+		queue.add(ppn);
+		continue;
+	    }
+
+	    if (table.testAndClearUsed(ppn)) {
+		queue.add(ppn);
+		continue;
+	    }
+
+	    table.pin(ppn);
+	    victims[numVictims++] = ppn;
+	}
+
+	return numVictims;
+    }
+
+    /** The physical pages in use, oldest first. */
+    private LinkedList<Integer> queue = new LinkedList<Integer>();
+}
@@ -0,0 +1,232 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * A swap area: a file opened through <tt>ThreadedKernel.fileSystem</tt>,
+ * divided into slots of one page each. Free slots are tracked in a bitmap
+ * that grows with the file.
+ *
+ * <p>
+ * Writes are clustered: pages written to consecutive slots are held in a
+ * buffer, and written with a single file operation once the buffer is full
+ * or the next write does not continue the run. A slot that is still in the
+ * buffer is read from the buffer.
+ *
+ * <p>
+ * A slot can be shared, by a process and the children it forked, in which
+ * case it is only freed once every sharer has freed it. A shared slot must
+ * not be written; a sharer that needs to write the page allocates a slot of
+ * its own.
+ */
+public class SwapFile {
+    /**
+     * Create a swap area in the specified file. Any existing contents are
+     * discarded.
+     *
+     * @param	name		the name of the swap file.
+     * @param	clusterSize	the most slots to write with one file
+     *				operation.
+     */
+    public SwapFile(String name, int clusterSize) {
+	Lib.assertTrue(clusterSize > 0);
+
+	this.name = name;
+	cluster = new byte[clusterSize * pageSize];
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "cannot open swap file " + name);
+    }
+
+    /**
+     * Allocate a run of consecutive free slots, the lowest-numbered run that
+     * is long enough.
+     *
+     * @param	numSlots	the number of slots to allocate.
+     * @return	the first slot of the run.
+     */
+    public int allocate(int numSlots) {
+	Lib.assertTrue(numSlots > 0);
+
+	int runStart = 0;
+	for (int slot=0; ; slot++) {
+	    if (isUsed(slot)) {
+		runStart = slot + 1;
+	    }
+	    else if (slot - runStart + 1 == numSlots) {
+		for (int i=runStart; i<=slot; i++)
+		    setUsed(i, true);
+		numUsedSlots += numSlots;
+		return runStart;
+	    }
+	}
+    }
+
+    /**
+     * Free a slot allocated by <tt>allocate()</tt>. If the slot is still
+     * waiting to be written, it is written anyway, and a later write to the
+     * slot replaces it. A shared slot stays allocated until its last sharer
+     * frees it.
+     *
+     * @param	slot	the slot to free.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(isUsed(slot));
+
+	Integer numSharers = extraSharers.get(slot);
+	if (numSharers != null) {
+	    if (numSharers == 1)
+		extraSharers.remove(slot);
+	    else
+		extraSharers.put(slot, numSharers - 1);
+	    return;
+	}
+
+	setUsed(slot, false);
+	numUsedSlots--;
+    }
+
+    /**
+     * Add a sharer to an allocated slot. The slot must be freed once more
+     * before it is really free.
+     *
+     * @param	slot	the slot to share.
+     */
+    public void share(int slot) {
+	Lib.assertTrue(isUsed(slot));
+
+	Integer numSharers = extraSharers.get(slot);
+	extraSharers.put(slot, (numSharers == null) ? 1 : numSharers + 1);
+    }
+
+    /**
+     * Return whether more than one sharer holds a slot.
+     *
+     * @param	slot	an allocated slot.
+     */
+    public boolean isShared(int slot) {
+	return extraSharers.containsKey(slot);
+    }
+
+    /**
+     * Read a slot into a physical page.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to fill.
+     */
+    public void read(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	if (isPending(slot)) {
+	    System.arraycopy(cluster, (slot - firstPending)*pageSize,
+			     memory, ppn*pageSize, pageSize);
+	    return;
+	}
+
+	int amount = file.read(slot*pageSize, memory, ppn*pageSize, pageSize);
+	Lib.assertTrue(amount == pageSize, "swap read failed");
+	numReads++;
+    }
+
+    /**
+     * Write a physical page to a slot, which must not be shared. The page is copied into the cluster
+     * buffer, so the physical page can be reused as soon as this returns.
+     * The file is written when the cluster is full, or when a write to a
+     * slot that does not continue the run starts a new one.
+     *
+     * @param	slot	the slot to write.
+     * @param	ppn	the physical page to write.
+     */
+    public void write(int slot, int ppn) {
+	Lib.assertTrue(!isShared(slot));
+
+	if (!isPending(slot)) {
+	    if (numPending > 0 && slot != firstPending + numPending)
+		flush();
+	    if (numPending == 0)
+		firstPending = slot;
+	    numPending++;
+	}
+
+	byte[] memory = Machine.processor().getMemory();
+	System.arraycopy(memory, ppn*pageSize,
+			 cluster, (slot - firstPending)*pageSize, pageSize);
+
+	if (numPending*pageSize == cluster.length)
+	    flush();
+    }
+
+    /**
+     * Write the slots waiting in the cluster buffer. They stay readable from
+     * the buffer until the file operation completes.
+     */
+    private void flush() {
+	int amount = file.write(firstPending*pageSize, cluster, 0,
+				numPending*pageSize);
+	Lib.assertTrue(amount == numPending*pageSize, "swap write failed");
+	numWrites++;
+	numPagesWritten += numPending;
+	numPending = 0;
+    }
+
+    private boolean isPending(int slot) {
+	return slot >= firstPending && slot < firstPending + numPending;
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    /**
+     * Print the swap statistics.
+     */
+    public void print() {
+	System.out.println("Swap: reads " + numReads + ", writes " + numWrites
+			   + " (" + numPagesWritten + " pages), slots in use "
+			   + numUsedSlots);
+    }
+
+    private boolean isUsed(int slot) {
+	int word = slot / 64;
+	return word < usedSlots.length
+	    && (usedSlots[word] & (1L << (slot % 64))) != 0;
+    }
+
+    private void setUsed(int slot, boolean used) {
+	int word = slot / 64;
+	if (word >= usedSlots.length) {
+	    long[] grown = new long[Math.max(word + 1, usedSlots.length * 2)];
+	    System.arraycopy(usedSlots, 0, grown, 0, usedSlots.length);
+	    usedSlots = grown;
+	}
+
+	if (used)
+	    usedSlots[word] |= 1L << (slot % 64);
+	else
+	    usedSlots[word] &= ~(1L << (slot % 64));
+    }
+
+    private String name;
+    private OpenFile file;
+    /** Pages written to consecutive slots but not yet to the file. */
+    private byte[] cluster;
+    private int firstPending = 0;
+    private int numPending = 0;
+    /** One bit per slot, set if the slot is in use. */
+    private long[] usedSlots = new long[1];
+    private int numUsedSlots = 0;
+    /** The number of sharers of each shared slot, besides the first. */
+    private HashMap<Integer, Integer> extraSharers =
+	new HashMap<Integer, Integer>();
+
+    private int numReads = 0;
+    private int numWrites = 0;
+    private int numPagesWritten = 0;
+
+    private static final int pageSize = Processor.pageSize;
+}
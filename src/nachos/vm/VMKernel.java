@@ -17,26 +17,75 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. Creates the swap file, named by the
+     * <tt>nachos.conf</tt> key <tt>VMKernel.swapFile</tt>, which writes up to
+     * <tt>VMKernel.writebackCluster</tt> pages (4 by default) with one file
+     * operation, and the page replacement policy, named by
+     * <tt>VMKernel.replacementPolicy</tt> (<tt>nachos.vm.ClockPolicy</tt> by
+     * default).
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	invertedPageTable = new InvertedPageTable(numPhysPages);
+	hashedPageTable = new HashedPageTable(numPhysPages);
+	replacementPolicy = (ReplacementPolicy)
+	    Lib.constructObject(Config.getString("VMKernel.replacementPolicy",
+						 "nachos.vm.ClockPolicy"));
+
+	tagTLB = Config.getBoolean("VMKernel.tagTLB", true);
+
+	vmLock = new Lock("vm");
+	pageLoaded = new Condition2(vmLock, "page loaded");
+	swap = new SwapFile(Config.getString("VMKernel.swapFile", "swap"),
+			    Config.getInteger("VMKernel.writebackCluster", 4));
+
+	Machine.addHaltNotificationHandler(new Runnable() {
+		public void run() {
+		    System.out.println("Replacement: " + replacementPolicy.getName()
+				       + ", page faults " + numPageFaults
+				       + ", evictions " + numEvictions);
+		    swap.print();
+		    if (deduplicator != null)
+			deduplicator.print();
+		    if (prefetcher != null)
+			prefetcher.print();
+		    // removing the file sleeps in the file system
+		    if (!Machine.interrupt().disabled())
+			swap.close();
+		}
+	    });
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
 
     /**
-     * Start running user programs.
+     * Start running user programs, the page deduplicator if
+     * <tt>VMKernel.dedupInterval</tt> is set, and the page prefetcher if
+     * <tt>VMKernel.prefetchWindow</tt> is set.
      */
     public void run() {
+	int dedupInterval = Config.getInteger("VMKernel.dedupInterval", 0);
+	if (dedupInterval > 0) {
+	    deduplicator = new PageDeduplicator(dedupInterval);
+	    deduplicator.start();
+	}
+
+	int prefetchWindow = Config.getInteger("VMKernel.prefetchWindow", 0);
+	if (prefetchWindow > 0) {
+	    prefetcher = new PagePrefetcher(prefetchWindow);
+	    prefetcher.start();
+	}
+
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
@@ -44,8 +93,235 @@ public class VMKernel extends UserKernel {
 	super.terminate();
     }
 
+    /**
+     * Allocate a physical page for a virtual page of a process, evicting
+     * another page if memory is full. The zero page is given up before any
+     * page is evicted, if no process maps it any more. The page is returned pinned, so it
+     * cannot be evicted until the caller calls <tt>unpinFrame()</tt>. The
+     * caller must hold <tt>vmLock</tt>.
+     *
+     * @param	process	the process the page will belong to.
+     * @param	vpn	the virtual page it will back.
+     * @return	the physical page, or -1 if every page is pinned.
+     */
+    static int allocateFrame(VMProcess process, int vpn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	numPageFaults++;
+
+	int ppn = mapFreeFrame(process, vpn);
+	if (ppn == -1) {
+	    if (!UserKernel.releaseZeroFrame())
+		evictPage();
+	    ppn = mapFreeFrame(process, vpn);
+	}
+	return ppn;
+    }
+
+    /**
+     * Add a reference to the zero page, for a page fault on a page that
+     * starts out as zeros. The zero page is never evicted, but it is not
+     * worth evicting a page for either: if it is not allocated and memory
+     * is full, the caller must fill a page of its own. The caller must hold
+     * <tt>vmLock</tt>.
+     *
+     * @return	the zero page, or -1 if it is not allocated and there is no
+     *		free physical page for it.
+     */
+    static int useZeroFrame() {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	int ppn = UserKernel.mapZeroFrame();
+	if (ppn != -1)
+	    numPageFaults++;
+	return ppn;
+    }
+
+    /**
+     * Return whether there is a free physical page to prefetch into.
+     */
+    static boolean canPrefetch() {
+	return UserKernel.getNumFreeFrames() > 0;
+    }
+
+    /**
+     * Allocate a physical page for a page that is being prefetched, like
+     * <tt>allocateFrame()</tt>, but never by evicting, and only if
+     * <tt>canPrefetch()</tt>. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	process	the process the page will belong to.
+     * @param	vpn	the virtual page it will back.
+     * @return	the physical page, or -1 if memory is too full.
+     */
+    static int allocatePrefetchFrame(VMProcess process, int vpn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	if (!canPrefetch())
+	    return -1;
+	return mapFreeFrame(process, vpn);
+    }
+
+    private static int mapFreeFrame(VMProcess process, int vpn) {
+	int ppn = UserKernel.allocateFrame();
+	if (ppn != -1) {
+	    invertedPageTable.map(ppn, process, vpn);
+	    replacementPolicy.pageLoaded(ppn);
+	}
+	return ppn;
+    }
+
+    /**
+     * Free a physical page that belongs to a process. The caller must hold
+     * <tt>vmLock</tt>.
+     *
+     * @param	ppn	the page to free.
+     */
+    static void releaseFrame(int ppn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	invertedPageTable.unmap(ppn);
+	replacementPolicy.pageFreed(ppn);
+	UserKernel.freeFrame(ppn);
+    }
+
+    /**
+     * Stop sharing a physical page merged by the deduplicator. Once the page
+     * backs a single virtual page again, it goes back into the hashed page
+     * table. The caller must hold <tt>vmLock</tt>.
+     *
+     * @param	ppn	the shared physical page.
+     * @param	process	the process that stops sharing it.
+     * @param	vpn	the virtual page that no longer maps it.
+     */
+    static void unshareFrame(int ppn, VMProcess process, int vpn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	invertedPageTable.unshare(ppn, process, vpn);
+	if (invertedPageTable.getNumMappings(ppn) == 1) {
+	    VMProcess owner = invertedPageTable.getOwner(ppn);
+	    hashedPageTable.insert(owner.getPID(),
+				   invertedPageTable.getVPN(ppn), ppn);
+	}
+    }
+
+    /**
+     * Prevent a physical page from being evicted while the kernel uses it.
+     *
+     * @param	ppn	the page to pin.
+     */
+    static void pinFrame(int ppn) {
+	invertedPageTable.pin(ppn);
+    }
+
+    /**
+     * Release a page pinned by <tt>pinFrame()</tt> or
+     * <tt>allocateFrame()</tt>.
+     *
+     * @param	ppn	the page to unpin.
+     */
+    static void unpinFrame(int ppn) {
+	invertedPageTable.unpin(ppn);
+    }
+
+    /**
+     * Evict one page, chosen by the replacement policy. A clean page that is
+     * already in swap, or can be reloaded from the executable or a mapped
+     * file, is just dropped. A dirty page of a mapped file is written back
+     * to its file, and any other dirty page is written to swap, which
+     * groups writes to consecutive slots into one file operation. A dirty
+     * page that never had a slot gets the lowest free one, so pages evicted
+     * one after another tend to get consecutive slots.
+     */
+    private static void evictPage() {
+	VMProcess.syncTLB();
+
+	if (replacementPolicy.selectVictims(invertedPageTable, victim) == 0)
+	    return;
+	int ppn = victim[0];
+
+	Lib.debug(dbgVM, "evicting ppn " + ppn);
+
+	// merged pages are clean, so every process that shares one can
+	// reload it on its own
+	for (int i=invertedPageTable.getNumMappings(ppn)-1; i>0; i--) {
+	    invertedPageTable.getOwner(ppn, i)
+		.unmap(invertedPageTable.getVPN(ppn, i));
+	}
+
+	VMProcess owner = invertedPageTable.getOwner(ppn);
+	int vpn = invertedPageTable.getVPN(ppn);
+	owner.unmap(vpn);
+	// pages of mapped files go back to their files, not to swap
+	if (!owner.writeBackMappedPage(vpn) && invertedPageTable.isDirty(ppn))
+	    swapOut(owner, vpn, ppn);
+
+	releaseFrame(ppn);
+	numEvictions++;
+    }
+
+    /**
+     * Write a dirty resident page to its swap slot, and mark it clean. A page
+     * that has no slot, or shares its slot with a process it was forked from
+     * or forked, gets a free slot of its own. The caller must hold
+     * <tt>vmLock</tt>.
+     *
+     * @param	process	the process the page belongs to.
+     * @param	vpn	the page to write.
+     * @param	ppn	the physical page that holds it.
+     */
+    static void swapOut(VMProcess process, int vpn, int ppn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	int slot = process.getSwapSlot(vpn);
+	if (slot != -1 && swap.isShared(slot)) {
+	    swap.free(slot);
+	    slot = -1;
+	}
+	if (slot == -1) {
+	    slot = swap.allocate(1);
+	    process.setSwapSlot(vpn, slot);
+	}
+
+	swap.write(slot, ppn);
+	process.getPageTable().setDirty(vpn, false);
+    }
+
+    /**
+     * Serializes paging: page faults, evictions and process teardown.
+     */
+    static Lock vmLock;
+    /**
+     * Signaled, with <tt>vmLock</tt>, when a page that was being read without
+     * holding the lock is resident.
+     */
+    static Condition2 pageLoaded;
+    /**
+     * Whether TLB entries are tagged with the process ID as address space
+     * ID, so that they survive context switches. Set by the
+     * <tt>nachos.conf</tt> key <tt>VMKernel.tagTLB</tt>.
+     */
+    static boolean tagTLB;
+    /** The swap area. */
+    static SwapFile swap;
+    /** The resident pages of every process, by process ID and page. */
+    static HashedPageTable hashedPageTable;
+
+    /** The process and virtual page each physical page belongs to. */
+    static InvertedPageTable invertedPageTable;
+    /** The page deduplicator, or <tt>null</tt> if it is not running. */
+    static PageDeduplicator deduplicator = null;
+    /** The page prefetcher, or <tt>null</tt> if it is not running. */
+    static PagePrefetcher prefetcher = null;
+    private static ReplacementPolicy replacementPolicy;
+
+    /** Staging for the page chosen by the replacement policy. */
+    private static int[] victim = new int[1];
+    private static int numPageFaults = 0;
+    private static int numEvictions = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.HashMap;
+import java.util.HashSet;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -18,36 +21,613 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. If the TLB is tagged with
+     * address space IDs, this process's entries stay in it. Otherwise they
+     * are copied back to the page table and invalidated.
      */
     public void saveState() {
 	super.saveState();
+
+	if (!VMKernel.tagTLB) {
+	    for (int i=0; i<tlbOwners.length; i++) {
+		if (tlbOwners[i] != null)
+		    flushTLBEntry(i);
+	    }
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits of every TLB entry to the page table of
+     * the process it belongs to, and clear them in the TLB, so that the page
+     * tables show which pages were used since the last call.
+     */
+    static void syncTLB() {
+	Processor processor = Machine.processor();
+	for (int i=0; i<tlbOwners.length; i++) {
+	    if (tlbOwners[i] == null)
+		continue;
+
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.used || entry.dirty) {
+		tlbOwners[i].syncTLBEntry(entry);
+		entry.used = false;
+		entry.dirty = false;
+		processor.writeTLBEntry(i, entry);
+	    }
+	}
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. With a tagged TLB, the processor is
+     * switched to this process's address space ID, which is its process ID,
+     * and any of its entries still in the TLB become usable again. Otherwise
+     * the TLB is empty and is refilled one miss at a time.
      */
     public void restoreState() {
-	super.restoreState();
+	if (VMKernel.tagTLB)
+	    Machine.processor().setASID(getPID());
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. Every page starts out invalid, and is loaded from the
+     * executable or zero-filled by <tt>loadPage()</tt> the first time it is
+     * touched. Unlike <tt>UserProcess</tt>, no physical memory is reserved
+     * up front, so a process only ever holds the pages it has touched.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new PageTable(numPages);
+	for (int vpn=0; vpn<executable.getNumPages(); vpn++)
+	    pageTable.setReadOnly(vpn, executable.isReadOnly(vpn));
+
+	if (VMKernel.prefetcher != null)
+	    prefetchWindow = VMKernel.prefetcher.getMaxWindow();
+
+	return true;
     }
 
     /**
-     * Release any resources allocated by <tt>loadSections()</tt>.
+     * Release any resources allocated by <tt>loadSections()</tt>: the
+     * physical pages and the swap slots of this process.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	VMKernel.vmLock.acquire();
+
+	// the prefetcher may be reading pages of this process
+	while (!loading.isEmpty())
+	    VMKernel.pageLoaded.sleep();
+	unloaded = true;
+
+	countZeroFillPages();
+
+	for (int vpn=0; vpn<pageTable.getNumPages(); vpn++) {
+	    if (pageTable.isValid(vpn)) {
+		int ppn = pageTable.getPPN(vpn);
+		unmap(vpn);
+		releasePage(vpn, ppn);
+	    }
+	}
+
+	for (int slot : swapSlots.values())
+	    VMKernel.swap.free(slot);
+	swapSlots.clear();
+
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Record what became of the pages of this process that started out as
+     * zeros. The dirty bits of resident pages may only be in the TLB, so it
+     * is synced first.
+     */
+    protected void countZeroFillPages() {
+	syncTLB();
+	super.countZeroFillPages();
+    }
+
+    /**
+     * Record what became of a page that started out as zeros: it was
+     * touched if it is resident or in swap, and written if it is in swap or
+     * dirty.
+     */
+    protected void countZeroFillPage(int vpn) {
+	boolean resident = pageTable.isValid(vpn);
+	boolean swapped = swapSlots.containsKey(vpn);
+	UserKernel.countZeroFillPage(resident || swapped,
+				     swapped
+				     || (resident && pageTable.isDirty(vpn)));
+    }
+
+    /**
+     * Share the program and heap pages of a process calling <tt>fork()</tt>
+     * with this new process. Each page the parent has in memory is mapped by
+     * both processes and merged, as if by the <tt>PageDeduplicator</tt>, so
+     * the first write to it by either process copies it. Merged pages must be
+     * clean, so that every sharer can reload them after an eviction, so the
+     * parent's dirty pages are written to swap first. Swapped-out pages share
+     * the parent's slot until one of the processes writes the page back.
+     * Nothing is reserved; the copies are demand-paged like any other page.
+     *
+     * @param	parent	the process calling <tt>fork()</tt>.
+     * @return	<tt>true</tt>.
+     */
+    protected boolean forkPages(UserProcess parent) {
+	VMProcess process = (VMProcess) parent;
+	int heapEndVPN = process.getHeapEndVPN();
+
+	VMKernel.vmLock.acquire();
+
+	// the parent's dirty bits may only be in the TLB
+	syncTLB();
+	// the prefetcher may be reading pages of the parent
+	while (!process.loading.isEmpty())
+	    VMKernel.pageLoaded.sleep();
+
+	pageTable = new PageTable(heapEndVPN);
+	if (VMKernel.prefetcher != null)
+	    prefetchWindow = VMKernel.prefetcher.getMaxWindow();
+
+	for (int vpn=0; vpn<heapEndVPN; vpn++) {
+	    pageTable.setReadOnly(vpn, process.pageTable.isReadOnly(vpn)
+				  && !process.pageTable.isCopyOnWrite(vpn));
+
+	    if (process.pageTable.isValid(vpn)) {
+		int ppn = process.pageTable.getPPN(vpn);
+		if (process.pageTable.isDirty(vpn))
+		    VMKernel.swapOut(process, vpn, ppn);
+		process.mergePage(vpn);
+		mapMergedPage(vpn, ppn);
+		if (UserKernel.isZeroFrame(ppn))
+		    UserKernel.shareFrame(ppn);
+		else
+		    VMKernel.invertedPageTable.share(ppn, this, vpn);
+	    }
+
+	}
+
+	swapSlots.putAll(process.swapSlots);
+	for (int slot : swapSlots.values())
+	    VMKernel.swap.share(slot);
+
+	VMKernel.vmLock.release();
+	return true;
+    }
+
+    /**
+     * Load a page on first use, or bring it back from swap.
+     *
+     * @param	vpn	the virtual page to load.
+     * @return	<tt>true</tt> if the page was loaded.
+     */
+    protected boolean loadPage(int vpn) {
+	VMKernel.vmLock.acquire();
+	boolean loaded = pageTable.isValid(vpn) || loadPageLocked(vpn);
+	VMKernel.vmLock.release();
+	return loaded;
+    }
+
+    /**
+     * Load a page from swap if it has a slot, or else from its mapped file or
+     * the executable. A page that starts out as zeros is mapped to the zero
+     * page, merged, so that it is only given a physical page of its own when
+     * it is first written. If the prefetcher is already loading the page,
+     * wait for it instead. The caller must hold <tt>vmLock</tt>.
+     */
+    private boolean loadPageLocked(int vpn) {
+	while (loading.contains(vpn))
+	    VMKernel.pageLoaded.sleep();
+	if (pageTable.isValid(vpn))
+	    return true;
+	if (!isValidPage(vpn))
+	    return false;
+
+	int ppn = isZeroPage(vpn) ? VMKernel.useZeroFrame() : -1;
+	if (ppn != -1) {
+	    mapMergedPage(vpn, ppn);
+	}
+	else {
+	    ppn = VMKernel.allocateFrame(this, vpn);
+	    if (ppn == -1) {
+		Lib.debug(dbgVM, "\tevery physical page is pinned");
+		return false;
+	    }
+
+	    if (!fillPage(vpn, ppn, false))
+		return false;
+	}
+
+	if (VMKernel.prefetcher != null)
+	    detectStride(vpn);
+	return true;
+    }
+
+    /**
+     * Test whether a page still holds nothing but the zeros it started out
+     * with: it starts out as zeros, and was never written to swap.
+     */
+    private boolean isZeroPage(int vpn) {
+	return isZeroFillPage(vpn) && !swapSlots.containsKey(vpn);
+    }
+
+    /**
+     * Load a page ahead of its first use, if it is not resident and
+     * physical memory is not short. Pages that start out as zeros are left
+     * alone, since faulting on them takes no I/O. Called by the <tt>PagePrefetcher</tt>,
+     * which holds <tt>vmLock</tt>.
+     *
+     * @return	<tt>true</tt> if the page was loaded.
+     */
+    boolean prefetchPage(int vpn) {
+	if (unloaded || pageTable.isValid(vpn) || loading.contains(vpn)
+	    || !isValidPage(vpn) || isZeroPage(vpn))
+	    return false;
+
+	int ppn = VMKernel.allocatePrefetchFrame(this, vpn);
+	if (ppn == -1)
+	    return false;
+
+	return fillPage(vpn, ppn, true);
+    }
+
+    /**
+     * Fill a pinned physical page with the contents of a virtual page, and
+     * map it. The prefetcher reads swap and the executable without holding
+     * <tt>vmLock</tt>, so that processes can fault meanwhile. Page faults
+     * keep the lock, because a page read while other processes fault is
+     * likely to be evicted again before its process runs.
+     */
+    private boolean fillPage(int vpn, int ppn, boolean prefetching) {
+	if (prefetching) {
+	    loading.add(vpn);
+	    VMKernel.vmLock.release();
+	}
+
+	boolean filled = true;
+	MappedFile mappedFile = getMappedFile(vpn);
+	if (swapSlots.containsKey(vpn)) {
+	    VMKernel.swap.read(getSwapSlot(vpn), ppn);
+	}
+	else if (mappedFile != null) {
+	    filled = mappedFile.readPage(vpn, ppn);
+	}
+	else if (vpn < executable.getNumPages()) {
+	    filled = UserKernel.executables.loadPage(executable, vpn, ppn);
+	}
+	else {
+	    byte[] memory = Machine.processor().getMemory();
+	    java.util.Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+
+	if (prefetching) {
+	    VMKernel.vmLock.acquire();
+	    loading.remove(vpn);
+	    VMKernel.pageLoaded.wakeAll();
+	}
+
+	if (!filled) {
+	    VMKernel.releaseFrame(ppn);
+	    return false;
+	}
+
+	pageTable.map(vpn, ppn);
+	// a prefetched page is the first to go if it is not used soon
+	pageTable.setUsed(vpn, !prefetching);
+	pageTable.setDirty(vpn, false);
+	if (prefetching)
+	    prefetched.add(vpn);
+	VMKernel.hashedPageTable.insert(getPID(), vpn, ppn);
+	VMKernel.unpinFrame(ppn);
+	return true;
+    }
+
+    /**
+     * Record a page fault, and ask the prefetcher for the next pages if it
+     * continues a stride: if the pages one and two strides back were among
+     * the last few faulted on or prefetched and used, or, for a sequential
+     * run, if the page just before or after it was. The caller must hold
+     * <tt>vmLock</tt>.
+     */
+    private void detectStride(int vpn) {
+	int stride = 0;
+	for (int i=0; i<recentVPNs.length && stride == 0; i++) {
+	    int previous = recentVPNs[(recentIndex - i + recentVPNs.length)
+				      % recentVPNs.length];
+	    if (previous != -1 && previous != vpn
+		&& wasRecent(previous - (vpn - previous)))
+		stride = vpn - previous;
+	}
+	// a page next to one just faulted on starts a sequential run
+	if (stride == 0 && wasRecent(vpn - 1))
+	    stride = 1;
+	else if (stride == 0 && wasRecent(vpn + 1))
+	    stride = -1;
+
+	recentIndex = (recentIndex + 1) % recentVPNs.length;
+	recentVPNs[recentIndex] = vpn;
+
+	// a closed window reopens when a fault lands where the last stride
+	// predicted
+	if (prefetchWindow == 0 && vpn == predictedVPN)
+	    prefetchWindow = 1;
+	predictedVPN = (stride != 0) ? vpn + stride : -1;
+
+	if (stride == 0 || !VMKernel.canPrefetch())
+	    return;
+
+	for (int i=1; i<=prefetchWindow; i++) {
+	    int next = vpn + i*stride;
+	    if (next < 0 || next >= pageTable.getNumPages())
+		break;
+	    if (!pageTable.isValid(next) && !loading.contains(next)) {
+		VMKernel.prefetcher.request(this, next);
+		prefetchRequested = true;
+	    }
+	}
+    }
+
+    private boolean wasRecent(int vpn) {
+	// -1 marks an empty entry
+	if (vpn < 0)
+	    return false;
+
+	for (int i=0; i<recentVPNs.length; i++) {
+	    if (recentVPNs[i] == vpn)
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * Note the first use of a prefetched page, which continues its stride,
+     * and widen the prefetch window.
+     */
+    private void prefetchedPageUsed(int vpn) {
+	prefetched.remove(vpn);
+	recentIndex = (recentIndex + 1) % recentVPNs.length;
+	recentVPNs[recentIndex] = vpn;
+
+	prefetchWindow = Math.min(Math.max(prefetchWindow*2, 1),
+				  VMKernel.prefetcher.getMaxWindow());
+	VMKernel.prefetcher.pageUsed();
+    }
+
+    /**
+     * Pin the page, loading it first if necessary, so that it is not evicted
+     * while the kernel copies data to or from it.
+     */
+    protected int pinVirtualPage(int vpn, boolean writing) {
+	if (vpn < 0 || vpn >= pageTable.getNumPages())
+	    return -1;
+
+	VMKernel.vmLock.acquire();
+
+	int ppn = -1;
+	if ((pageTable.isValid(vpn) || loadPageLocked(vpn))
+	    && (!writing || !pageTable.isReadOnly(vpn) || unmergePage(vpn))) {
+	    ppn = pageTable.getPPN(vpn);
+	    pageTable.setUsed(vpn, true);
+	    if (writing)
+		pageTable.setDirty(vpn, true);
+	    VMKernel.pinFrame(ppn);
+	    if (prefetched.contains(vpn))
+		prefetchedPageUsed(vpn);
+	}
+
+	VMKernel.vmLock.release();
+	return ppn;
+    }
+
+    protected void unpinVirtualPage(int vpn) {
+	VMKernel.unpinFrame(pageTable.getPPN(vpn));
+    }
+
+    /**
+     * Mark a page as no longer resident, removing it from the TLB. Called by
+     * the kernel when the page is evicted. A page that was read-only only
+     * because it was merged becomes writable again, since it will be
+     * reloaded into a page of its own.
+     */
+    void unmap(int vpn) {
+	int ppn = pageTable.getPPN(vpn);
+	if (VMKernel.hashedPageTable.lookup(getPID(), vpn) == ppn)
+	    VMKernel.hashedPageTable.remove(ppn);
+
+	flushTLB(vpn);
+
+	pageTable.unmap(vpn);
+	if (prefetched.remove(vpn)) {
+	    prefetchWindow /= 2;
+	    VMKernel.prefetcher.pageWasted();
+	}
+	if (pageTable.isCopyOnWrite(vpn))
+	    pageTable.setCopyOnWrite(vpn, false);
+    }
+
+    /**
+     * Write a page that is being evicted back to its mapped file, if it has
+     * one and is dirty. Pages of mapped files never go to swap. The caller
+     * must hold <tt>vmLock</tt>.
+     *
+     * @return	<tt>true</tt> if the page belongs to a mapped file.
+     */
+    boolean writeBackMappedPage(int vpn) {
+	MappedFile mappedFile = getMappedFile(vpn);
+	if (mappedFile == null)
+	    return false;
+
+	if (pageTable.isDirty(vpn)) {
+	    if (!mappedFile.writePage(vpn, pageTable.getPPN(vpn)))
+		Lib.debug(dbgVM, "\tcould not write back vpn " + vpn);
+	    pageTable.setDirty(vpn, false);
+	}
+	return true;
+    }
+
+    /**
+     * Free the physical page of a mapped file's page, writing it back first
+     * if it is dirty. The TLB may hold the latest dirty bit, so the page is
+     * unmapped first.
+     */
+    protected boolean unmapFilePage(MappedFile mappedFile, int vpn) {
+	VMKernel.vmLock.acquire();
+
+	while (loading.contains(vpn))
+	    VMKernel.pageLoaded.sleep();
+
+	boolean written = true;
+	if (pageTable.isValid(vpn)) {
+	    int ppn = pageTable.getPPN(vpn);
+	    unmap(vpn);
+	    if (pageTable.isDirty(vpn))
+		written = mappedFile.writePage(vpn, ppn);
+	    pageTable.setDirty(vpn, false);
+	    releasePage(vpn, ppn);
+	}
+
+	VMKernel.vmLock.release();
+	return written;
+    }
+
+    /**
+     * Discard a page that is no longer part of the address space, freeing
+     * its physical page and its swap slot.
+     */
+    protected void freePage(int vpn) {
+	VMKernel.vmLock.acquire();
+
+	while (loading.contains(vpn))
+	    VMKernel.pageLoaded.sleep();
+
+	if (pageTable.isValid(vpn)) {
+	    int ppn = pageTable.getPPN(vpn);
+	    unmap(vpn);
+	    releasePage(vpn, ppn);
+	}
+	if (swapSlots.containsKey(vpn))
+	    VMKernel.swap.free(swapSlots.remove(vpn));
+
+	pageTable.clear(vpn);
+
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Drop this process's use of the physical page behind an unmapped page:
+     * the zero page loses a reference, a shared page loses a sharer, and any
+     * other page is freed. The caller must hold <tt>vmLock</tt>.
+     */
+    private void releasePage(int vpn, int ppn) {
+	if (UserKernel.isZeroFrame(ppn))
+	    UserKernel.freeFrame(ppn);
+	else if (VMKernel.invertedPageTable.getNumMappings(ppn) > 1)
+	    VMKernel.unshareFrame(ppn, this, vpn);
+	else
+	    VMKernel.releaseFrame(ppn);
+    }
+
+    /**
+     * Make a resident page read-only, because its physical page is about to
+     * be shared by the <tt>PageDeduplicator</tt>. Shared pages are left out
+     * of the hashed page table.
+     */
+    void mergePage(int vpn) {
+	Lib.assertTrue(pageTable.isValid(vpn) && !pageTable.isDirty(vpn));
+
+	int ppn = pageTable.getPPN(vpn);
+	if (VMKernel.hashedPageTable.lookup(getPID(), vpn) == ppn)
+	    VMKernel.hashedPageTable.remove(ppn);
+
+	flushTLB(vpn);
+
+	if (!pageTable.isReadOnly(vpn))
+	    pageTable.setCopyOnWrite(vpn, true);
+    }
+
+    /**
+     * Map a page to a physical page that already backs other pages. The
+     * page must have been unmapped, and is merged.
+     */
+    void mapMergedPage(int vpn, int ppn) {
+	Lib.assertTrue(!pageTable.isValid(vpn));
+
+	pageTable.map(vpn, ppn);
+	pageTable.setDirty(vpn, false);
+	mergePage(vpn);
+    }
+
+    /**
+     * Give a merged page a physical page of its own, before it is written.
+     * The caller must hold <tt>vmLock</tt>.
+     *
+     * @return	<tt>true</tt> if successful, or <tt>false</tt> if the page is
+     *		not merged or no physical page could be allocated.
+     */
+    private boolean unmergePage(int vpn) {
+	if (!pageTable.isValid(vpn) || !pageTable.isCopyOnWrite(vpn))
+	    return false;
+
+	int sharedPPN = pageTable.getPPN(vpn);
+	boolean zeroPage = UserKernel.isZeroFrame(sharedPPN);
+	if (!zeroPage
+	    && VMKernel.invertedPageTable.getNumMappings(sharedPPN) == 1) {
+	    // the other pages were evicted or exited
+	    flushTLB(vpn);
+	    pageTable.setCopyOnWrite(vpn, false);
+	    return true;
+	}
+
+	VMKernel.pinFrame(sharedPPN);
+	int ppn = VMKernel.allocateFrame(this, vpn);
+	if (ppn == -1) {
+	    VMKernel.unpinFrame(sharedPPN);
+	    return false;
+	}
+
+	byte[] memory = Machine.processor().getMemory();
+	System.arraycopy(memory, sharedPPN*pageSize, memory, ppn*pageSize, pageSize);
+
+	unmap(vpn);
+	releasePage(vpn, sharedPPN);
+	VMKernel.unpinFrame(sharedPPN);
+
+	// the shared page was clean, so the copy still matches swap or the
+	// executable, or is still all zeros, until it is written
+	pageTable.map(vpn, ppn);
+	pageTable.setUsed(vpn, true);
+	pageTable.setDirty(vpn, false);
+	VMKernel.hashedPageTable.insert(getPID(), vpn, ppn);
+	VMKernel.unpinFrame(ppn);
+
+	if (VMKernel.deduplicator != null && !zeroPage)
+	    VMKernel.deduplicator.pageUnmerged();
+	return true;
+    }
+
+    /**
+     * Invalidate any TLB entry for a page of this process.
+     */
+    private void flushTLB(int vpn) {
+	for (int i=0; i<tlbOwners.length; i++) {
+	    if (tlbOwners[i] == this && tlbVPNs[i] == vpn)
+		flushTLBEntry(i);
+	}
+    }
+
+    PageTable getPageTable() {
+	return pageTable;
+    }
+
+    int getSwapSlot(int vpn) {
+	Integer slot = swapSlots.get(vpn);
+	return (slot == null) ? -1 : slot;
+    }
+
+    void setSwapSlot(int vpn, int slot) {
+	swapSlots.put(vpn, slot);
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +641,181 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+	    break;
+	case Processor.exceptionReadOnly:
+	    int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+	    VMKernel.vmLock.acquire();
+	    boolean unmerged = vpn < pageTable.getNumPages() && unmergePage(vpn);
+	    VMKernel.vmLock.release();
+	    if (!unmerged) {
+		Lib.debug(dbgVM, "write to a read-only page");
+		killAndFree(-1);
+	    }
+	    break;
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
+
+    /**
+     * Handle a TLB miss: load the page if this is its first use, and copy its
+     * translation into the TLB. The faulting instruction is restarted when
+     * the handler returns.
+     *
+     * <p>
+     * Most misses are for resident pages, and are refilled from the hashed
+     * page table with interrupts disabled, without taking
+     * <tt>vmLock</tt> or allocating anything. Only a page fault takes the
+     * lock.
+     *
+     * @param	vaddr	the virtual address that missed.
+     */
+    protected void handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= pageTable.getNumPages()) {
+	    Lib.debug(dbgVM, "TLB miss outside of address space: 0x"
+		      + Lib.toHexString(vaddr));
+	    killAndFree(-1);
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+	int ppn = VMKernel.hashedPageTable.lookup(getPID(), vpn);
+	if (ppn != -1)
+	    refillTLB(vpn, ppn);
+	Machine.interrupt().restore(intStatus);
+	if (ppn != -1)
+	    return;
+
+	VMKernel.vmLock.acquire();
+
+	if (!pageTable.isValid(vpn)) {
+	    Lib.debug(dbgVM, "page fault on vpn " + vpn);
+	    if (!loadPageLocked(vpn)) {
+		VMKernel.vmLock.release();
+		killAndFree(-1);
+	    }
+	}
+	refillTLB(vpn, pageTable.getPPN(vpn));
+
+	VMKernel.vmLock.release();
+
+	// let the prefetcher start reading while this process runs
+	if (prefetchRequested) {
+	    prefetchRequested = false;
+	    KThread.yield();
+	}
+    }
+
+    /**
+     * Put the translation of a resident page in the TLB. A free slot is used
+     * if there is one, or else the first entry the hand finds that was not
+     * used since <tt>syncTLB()</tt> last cleared its <tt>used</tt> bit, or
+     * else the entry under the hand. Only the replaced entry's bits are
+     * copied back to the page table.
+     */
+    private void refillTLB(int vpn, int ppn) {
+	Processor processor = Machine.processor();
+
+	if (prefetched.contains(vpn))
+	    prefetchedPageUsed(vpn);
+
+	int slot = -1;
+	for (int i=0; i<tlbOwners.length && slot == -1; i++) {
+	    if (tlbOwners[i] == null)
+		slot = i;
+	}
+
+	if (slot == -1) {
+	    for (int i=0; i<tlbOwners.length && slot == -1; i++) {
+		int candidate = (tlbHand + i) % tlbOwners.length;
+		if (!processor.readTLBEntry(candidate).used)
+		    slot = candidate;
+	    }
+	    if (slot == -1)
+		slot = tlbHand;
+	    tlbHand = (slot + 1) % tlbOwners.length;
+
+	    tlbOwners[slot].syncTLBEntry(processor.readTLBEntry(slot));
+	}
+
+	tlbEntry.asid = processor.getASID();
+	tlbEntry.vpn = vpn;
+	tlbEntry.ppn = ppn;
+	tlbEntry.valid = true;
+	tlbEntry.readOnly = pageTable.isReadOnly(vpn);
+	// the access that missed is about to use it
+	tlbEntry.used = true;
+	tlbEntry.dirty = false;
+	processor.writeTLBEntry(slot, tlbEntry);
+	tlbOwners[slot] = this;
+	tlbVPNs[slot] = vpn;
+    }
+
+    /**
+     * Copy a TLB entry's bits back to the page table and invalidate it.
+     */
+    private void flushTLBEntry(int slot) {
+	Processor processor = Machine.processor();
+
+	tlbOwners[slot].syncTLBEntry(processor.readTLBEntry(slot));
+
+	tlbEntry.valid = false;
+	processor.writeTLBEntry(slot, tlbEntry);
+	tlbOwners[slot] = null;
+    }
+
+    /**
+     * Copy the used and dirty bits set by the processor in a TLB entry back
+     * to this process's page table.
+     *
+     * @param	tlbEntry	a valid TLB entry for this process.
+     */
+    protected void syncTLBEntry(TranslationEntry tlbEntry) {
+	pageTable.writeBack(tlbEntry);
+    }
 	
+    /**
+     * The swap slot of each page that was swapped out, by virtual page. Few
+     * pages are in swap or being prefetched at a time, so these are kept in
+     * maps and sets rather than in arrays as long as the page table.
+     */
+    private HashMap<Integer, Integer> swapSlots =
+	new HashMap<Integer, Integer>();
+    /** Pages loaded by the prefetcher that were not used yet. */
+    private HashSet<Integer> prefetched = new HashSet<Integer>();
+    /** Pages being read without holding <tt>vmLock</tt>. */
+    private HashSet<Integer> loading = new HashSet<Integer>();
+    /** Set once the pages are freed, so that no more are prefetched. */
+    private boolean unloaded = false;
+
+    /** The last pages faulted on or prefetched and used, as a ring. */
+    private int[] recentVPNs = new int[] { -1, -1, -1, -1 };
+    private int recentIndex = 0;
+    /**
+     * The number of pages to prefetch when a stride is detected. Zero if
+     * prefetched pages kept being wasted.
+     */
+    private int prefetchWindow = 1;
+    /** The page the last detected stride leads to, or -1. */
+    private int predictedVPN = -1;
+    /** Set if the last page fault asked the prefetcher for pages. */
+    private boolean prefetchRequested = false;
+
+    /**
+     * The process and virtual page in each TLB slot. The owner is
+     * <tt>null</tt> if the slot is invalid.
+     */
+    private static VMProcess[] tlbOwners =
+	new VMProcess[Machine.processor().getTLBSize()];
+    private static int[] tlbVPNs = new int[Machine.processor().getTLBSize()];
+    /** The slot where the search for a TLB entry to replace starts. */
+    private static int tlbHand = 0;
+    /** Staging for entries written to the TLB. */
+    private static TranslationEntry tlbEntry = new TranslationEntry();
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
@@ -0,0 +1,91 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Like the clock algorithm, a hand sweeps over
+ * physical memory, but a page whose <tt>used</tt> bit is clear is only
+ * evicted once it has not been used for longer than the working set window,
+ * <tt>WSClockPolicy.window</tt> ticks (10000 by default). Clean pages are
+ * preferred, since they can be dropped without writing them to swap; old
+ * dirty pages are only evicted if a lap finds no clean ones.
+ *
+ * <p>
+ * Nachos keeps no per-process virtual time, so the age of a page is
+ * measured in machine ticks.
+ */
+public class WSClockPolicy implements ReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+	window = Config.getInteger("WSClockPolicy.window", 10000);
+	lastUsed = new long[Machine.processor().getNumPhysPages()];
+    }
+
+    public String getName() {
+	return "WSClock";
+    }
+
+    public void pageLoaded(int ppn) {
+	lastUsed[ppn] = Machine.timer().getTime();
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    public int selectVictims(InvertedPageTable table, int[] victims) {
+	int numPhysPages = table.getNumPhysPages();
+	long now = Machine.timer().getTime();
+	int numVictims = 0;
+
+	// the first lap takes old clean pages and notes the rest; a page
+	// still in the working set is only taken if nothing older is left
+	int[] oldDirty = new int[victims.length];
+	int numOldDirty = 0;
+	int oldest = -1;
+
+	for (int scanned=0;
+	     scanned < numPhysPages && numVictims < victims.length;
+	     scanned++) {
+	    int ppn = hand;
+	    hand = (hand + 1) % numPhysPages;
+
+	    if (!table.isEvictable(ppn))
+		continue;
+
+	    if (table.testAndClearUsed(ppn)) {
+		lastUsed[ppn] = now;
+	    }
+	    else if (now - lastUsed[ppn] > window) {
+		if (!table.isDirty(ppn)) {
+		    table.pin(ppn);
+		    victims[numVictims++] = ppn;
+		    continue;
+		}
+		if (numOldDirty < oldDirty.length)
+		    oldDirty[numOldDirty++] = ppn;
+	    }
+
+	    if (oldest == -1 || lastUsed[ppn] < lastUsed[oldest])
+		oldest = ppn;
+	}
+
+	for (int i=0; i<numOldDirty && numVictims < victims.length; i++) {
+	    table.pin(oldDirty[i]);
+	    victims[numVictims++] = oldDirty[i];
+	}
+
+	if (numVictims == 0 && oldest != -1) {
+	    table.pin(oldest);
+	    victims[numVictims++] = oldest;
+	}
+
+	return numVictims;
+    }
+
+    private int hand = 0;
+    private long window;
+    /** The time each physical page was last seen to be used. */
+    private long[] lastUsed;
+}